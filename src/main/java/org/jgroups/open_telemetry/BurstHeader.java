@@ -0,0 +1,61 @@
+package org.jgroups.open_telemetry;
+
+import org.jgroups.Header;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.function.Supplier;
+
+/**
+ * Header of the message multicast by {@link org.jgroups.protocols.OPEN_TELEMETRY} to start a diagnostic burst
+ * (see {@link DiagnosticBurst}) on all members
+ * @since  1.0.0
+ */
+public class BurstHeader extends Header {
+    public static final short ID=1051;
+    protected long            id;       // identifies the burst, together with the sender
+    protected long            duration; // in ms
+    protected long            max_spans;
+
+    public BurstHeader() {
+    }
+
+    public BurstHeader(long id, long duration, long max_spans) {
+        this.id=id;
+        this.duration=duration;
+        this.max_spans=max_spans;
+    }
+
+    public short getMagicId() {
+        return ID;
+    }
+
+    public Supplier<? extends Header> create() {
+        return BurstHeader::new;
+    }
+
+    public long id()       {return id;}
+    public long duration() {return duration;}
+    public long maxSpans() {return max_spans;}
+
+    public int serializedSize() {
+        return Long.BYTES * 3;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(id);
+        out.writeLong(duration);
+        out.writeLong(max_spans);
+    }
+
+    public void readFrom(DataInput in) throws IOException, ClassNotFoundException {
+        id=in.readLong();
+        duration=in.readLong();
+        max_spans=in.readLong();
+    }
+
+    public String toString() {
+        return String.format("id=%d, duration=%d ms, max_spans=%d", id, duration, max_spans);
+    }
+}
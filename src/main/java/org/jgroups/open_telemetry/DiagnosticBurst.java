@@ -0,0 +1,95 @@
+package org.jgroups.open_telemetry;
+
+import org.jgroups.Address;
+import org.jgroups.util.Util;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * A time- and/or span-bounded window of full-fidelity tracing, started at runtime (via JMX or probe) by
+ * {@link org.jgroups.protocols.OPEN_TELEMETRY}. While the burst is active, every received message is traced,
+ * regardless of sampling and span quotas. A summary of the window is available when the burst has ended.<br/>
+ * A burst is identified by its initiator and an ID, so that a resent request for the same burst can be recognized.
+ * @since  1.0.0
+ */
+public class DiagnosticBurst {
+    protected final Address                  initiator;
+    protected final long                     id;
+    protected final long                     duration;  // ms
+    protected final long                     max_spans; // 0: unlimited
+    protected final long                     start=System.nanoTime(), start_time=System.currentTimeMillis();
+    protected final long                     end;
+    protected final AtomicLong               spans=new AtomicLong();
+    protected final LongAdder                bytes=new LongAdder();
+    protected final Map<Address,LongAdder>   senders=new ConcurrentHashMap<>();
+    protected volatile long                  stopped;
+
+    public DiagnosticBurst(Address initiator, long id, long duration, long max_spans) {
+        if(duration <= 0)
+            throw new IllegalArgumentException("duration must be > 0");
+        this.initiator=initiator;
+        this.id=id;
+        this.duration=duration;
+        this.max_spans=max_spans;
+        this.end=start + TimeUnit.MILLISECONDS.toNanos(duration);
+    }
+
+    public Address initiator() {return initiator;}
+    public long    id()        {return id;}
+    public long    duration()  {return duration;}
+    public long    maxSpans()  {return max_spans;}
+    public long    spans()     {return spans.get();}
+
+    /** Returns true if a span can be created, or false if the burst has expired or the max number of spans is reached */
+    public boolean tryAcquire() {
+        if(System.nanoTime() - end >= 0)
+            return false;
+        if(spans.incrementAndGet() > max_spans && max_spans > 0) {
+            spans.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /** Records a traced message */
+    public DiagnosticBurst record(Address sender, int length) {
+        bytes.add(length);
+        if(sender != null)
+            senders.computeIfAbsent(sender, s -> new LongAdder()).increment();
+        return this;
+    }
+
+    /** Returns true if this is the burst with the given initiator and ID */
+    public boolean is(Address initiator, long id) {
+        return this.id == id && Objects.equals(this.initiator, initiator);
+    }
+
+    public DiagnosticBurst stop() {
+        if(stopped == 0)
+            stopped=System.nanoTime();
+        return this;
+    }
+
+    public String summary() {
+        long elapsed=(stopped > 0? stopped : System.nanoTime()) - start;
+        String top=senders.entrySet().stream()
+          .sorted(Comparator.comparingLong((Map.Entry<Address,LongAdder> e) -> e.getValue().sum()).reversed())
+          .limit(5).map(e -> String.format("%s: %,d", e.getKey(), e.getValue().sum()))
+          .collect(Collectors.joining(", "));
+        return String.format("burst started by %s at %tT (duration=%d ms, max_spans=%d): ran %s, %,d spans, " +
+                               "%s received, top senders: [%s]",
+                             initiator, start_time, duration, max_spans, Util.printTime(elapsed, TimeUnit.NANOSECONDS),
+                             spans.get(), Util.printBytes(bytes.sum()), top);
+    }
+
+    public String toString() {
+        return summary();
+    }
+}
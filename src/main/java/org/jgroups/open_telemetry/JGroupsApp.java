@@ -88,6 +88,7 @@ public class JGroupsApp {
         Util.close(b,a);
         List<SpanData> span_items=spanExporter.getFinishedSpanItems();
         System.out.printf("-- spans (%d):\n%s\n", span_items.size(), span_items);
+        System.out.printf("-- analysis:\n%s", new TraceAnalyzer().analyze(span_items.stream()).report(10));
     }
 
     // sends a unicast message from A -> B
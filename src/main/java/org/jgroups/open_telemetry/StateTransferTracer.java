@@ -0,0 +1,278 @@
+package org.jgroups.open_telemetry;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.LongHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import org.jgroups.Address;
+import org.jgroups.Header;
+import org.jgroups.Message;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.UnicastHeader3;
+import org.jgroups.protocols.pbcast.STATE;
+import org.jgroups.protocols.pbcast.STATE_SOCK;
+import org.jgroups.protocols.pbcast.STATE_TRANSFER;
+import org.jgroups.protocols.pbcast.StreamingStateTransfer;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Traces state transfers ({@link STATE}, {@link STATE_SOCK} or {@link STATE_TRANSFER}) by looking at the headers of
+ * the messages passing through {@link org.jgroups.protocols.OPEN_TELEMETRY}. A single span is created on the requester
+ * and on the provider for the entire transfer (the provider span is a child of the requester span); chunks are not
+ * traced individually but aggregated into the transfer span and recorded as metrics.<br/>
+ * The following is recorded for a transfer: bytes, bytes/sec, number of chunks, stall time (time between chunks,
+ * e.g. waiting for flow control credits or for the provider's application to write state) and apply time (time
+ * spent passing state up to the application, including blocking while the application is slow to consume it).<br/>
+ * As OPEN_TELEMETRY is placed below {@link UNICAST3}, retransmitted and duplicate messages pass through it, too. They
+ * are recognized by their UNICAST3 sequence numbers: a duplicate state request does not start a new span, and
+ * duplicate chunks are not counted. As seqnos are shared with other unicasts between the same members, they are
+ * only tracked in a window of {@link #SEQNO_WINDOW} below the highest seqno seen; older messages are considered
+ * duplicates. Without UNICAST3 in the stack, counts include retransmissions.<br/>
+ * With {@link STATE_SOCK}, state is transferred over a separate TCP connection, so bytes and chunks are not known;
+ * the requester's apply time includes reading the state from the socket. The provider span only covers the handling
+ * of the state request until the response is sent, and ends before the state is written to the socket.
+ * @since  1.0.0
+ */
+public class StateTransferTracer {
+    public static final byte NONE=0, REQ=1, RSP=2, PART=3, EOF=4, EX=5;
+    /** The number of seqnos below the highest one seen for which duplicates are detected */
+    public static final int  SEQNO_WINDOW=1024;
+
+    protected static final AttributeKey<String> ROLE=AttributeKey.stringKey("role");
+    protected static final AttributeKey<String> PEER=AttributeKey.stringKey("peer");
+    protected static final Attributes           REQUESTER=Attributes.of(ROLE, "requester"),
+                                                PROVIDER=Attributes.of(ROLE, "provider");
+
+    protected final short                 id;            // the ID of the state transfer protocol (and its header)
+    protected final short                 unicast_id;    // the ID of UNICAST3, or 0 if not present
+    protected final String                protocol;
+    protected final boolean               rsp_has_state; // the state is sent in the response (STATE_TRANSFER)
+    protected final boolean               rsp_completes; // the transfer ends with the response (not with EOF)
+    protected final Tracer                tracer;
+    protected final LongHistogram         chunk_sizes, chunk_times;
+    protected final LongCounter           bytes;
+    protected final Map<Address,Transfer> requests=new ConcurrentHashMap<>(), provides=new ConcurrentHashMap<>();
+    // seqnos of the state requests of the last completed transfers, to drop late duplicates of those requests
+    protected final Map<Address,Long>     last_requests=new ConcurrentHashMap<>(), last_provides=new ConcurrentHashMap<>();
+
+    protected StateTransferTracer(Protocol prot, short unicast_id, Tracer tracer, Meter meter) {
+        this.id=prot.getId();
+        this.unicast_id=unicast_id;
+        this.protocol=prot.getName();
+        this.rsp_has_state=prot instanceof STATE_TRANSFER;
+        this.rsp_completes=!(prot instanceof STATE);
+        this.tracer=tracer;
+        chunk_sizes=meter.histogramBuilder("jgroups.state_transfer.chunk.size").ofLongs()
+          .setDescription("Size of state transfer chunks").setUnit("By").build();
+        chunk_times=meter.histogramBuilder("jgroups.state_transfer.chunk.duration").ofLongs()
+          .setDescription("Time to send a chunk (provider) or to pass it up to the application (requester)")
+          .setUnit("us").build();
+        bytes=meter.counterBuilder("jgroups.state_transfer.bytes").setDescription("Bytes of state transferred")
+          .setUnit("By").build();
+    }
+
+    /** Returns a tracer for the state transfer protocol in the given stack, or null if there is none */
+    public static StateTransferTracer create(ProtocolStack stack, Tracer tracer, Meter meter) {
+        Protocol prot=stack.findProtocol(StreamingStateTransfer.class, STATE_TRANSFER.class);
+        if(prot == null)
+            return null;
+        Protocol unicast=stack.findProtocol(UNICAST3.class);
+        return new StateTransferTracer(prot, unicast != null? unicast.getId() : 0, tracer, meter);
+    }
+
+    /** Returns the type of the state transfer message, or {@link #NONE} if it isn't one */
+    public byte type(Message msg) {
+        Header hdr=msg.getHeader(id);
+        if(hdr instanceof StreamingStateTransfer.StateHeader)
+            return (byte)((StreamingStateTransfer.StateHeader)hdr).getType(); // same values as ours
+        if(hdr instanceof STATE_TRANSFER.StateHeader) {
+            int type=((STATE_TRANSFER.StateHeader)hdr).getType();
+            return type == STATE_TRANSFER.StateHeader.STATE_REQ? REQ
+              : type == STATE_TRANSFER.StateHeader.STATE_RSP? RSP : EX;
+        }
+        return NONE;
+    }
+
+    /**
+     * Starts the requester span; it needs to be current when the request is sent, so that it is propagated. If the
+     * request is a retransmission, the span of the ongoing transfer (or an invalid span) is returned
+     */
+    public Span requestSent(Message req) {
+        return start(req.dest(), seqno(req), requests, last_requests, "state-transfer-requester", SpanKind.CLIENT,
+                     Context.current(), REQUESTER);
+    }
+
+    /**
+     * Starts the provider span, as a child of the requester span (if propagated). If the request is a duplicate, the
+     * span of the ongoing transfer (or an invalid span) is returned
+     */
+    public Span requestReceived(Message req, Context parent) {
+        return start(req.src(), seqno(req), provides, last_provides, "state-transfer-provider", SpanKind.SERVER,
+                     parent, PROVIDER);
+    }
+
+    /**
+     * Called by the provider after a state message has been sent
+     * @param time_ns the time (in ns) it took to send the message
+     */
+    public void sent(Message msg, byte type, long time_ns) {
+        Address requester=msg.dest();
+        Transfer t=type == REQ? null : provides.get(requester);
+        if(t == null || !t.firstTime(seqno(msg)))
+            return;
+        if(hasState(type))
+            t.chunk(msg.getLength(), time_ns, false);
+        if(completes(type))
+            end(requester, t, provides, last_provides, type == EX? "failed providing state" : null);
+    }
+
+    /**
+     * Called by the requester after a state message has been passed up
+     * @param time_ns the time (in ns) it took to pass the message up
+     */
+    public void received(Message msg, byte type, long time_ns) {
+        Address provider=msg.src();
+        Transfer t=type == REQ? null : requests.get(provider);
+        if(t == null || !t.firstTime(seqno(msg)))
+            return;
+        if(hasState(type))
+            t.chunk(msg.getLength(), time_ns, true);
+        else if(completes(type))
+            t.apply(time_ns);
+        if(completes(type))
+            end(provider, t, requests, last_requests, type == EX? "state provider failed" : null);
+    }
+
+    /** Ends all pending spans, e.g. when the channel is stopped */
+    public void clear() {
+        requests.values().forEach(t -> t.end("state transfer did not complete"));
+        provides.values().forEach(t -> t.end("state transfer did not complete"));
+        requests.clear();
+        provides.clear();
+        last_requests.clear();
+        last_provides.clear();
+    }
+
+    protected Span start(Address peer, long req_seqno, Map<Address,Transfer> transfers, Map<Address,Long> last,
+                         String name, SpanKind kind, Context parent, Attributes attrs) {
+        if(req_seqno >= 0 && last.getOrDefault(peer, -1L) == req_seqno)
+            return Span.getInvalid(); // late duplicate of the request of an already completed transfer
+        Transfer t=transfers.computeIfAbsent(peer, p -> {
+            Span span=tracer.spanBuilder(name).setSpanKind(kind).setParent(parent)
+              .setAttribute(PEER, String.valueOf(p)).setAttribute(TracingRuntime.PROTOCOL, protocol).startSpan();
+            return new Transfer(span, attrs, req_seqno);
+        });
+        return t.span; // the span of the ongoing transfer if the request is a duplicate
+    }
+
+    protected void end(Address peer, Transfer t, Map<Address,Transfer> transfers, Map<Address,Long> last, String error) {
+        if(!transfers.remove(peer, t))
+            return;
+        if(t.req_seqno >= 0)
+            last.put(peer, t.req_seqno);
+        t.end(error);
+    }
+
+    /** Returns the UNICAST3 seqno of a message, or -1 if not available */
+    protected long seqno(Message msg) {
+        if(unicast_id == 0)
+            return -1;
+        Header hdr=msg.getHeader(unicast_id);
+        return hdr instanceof UnicastHeader3 && ((UnicastHeader3)hdr).type() == UnicastHeader3.DATA?
+          ((UnicastHeader3)hdr).seqno() : -1;
+    }
+
+    protected boolean hasState(byte type) {
+        return type == PART || (type == RSP && rsp_has_state);
+    }
+
+    protected boolean completes(byte type) {
+        return type == EOF || type == EX || (type == RSP && rsp_completes);
+    }
+
+    protected class Transfer {
+        protected final Span       span;
+        protected final Attributes attrs;
+        protected final long       req_seqno; // the seqno of the state request, -1 if not known
+        protected final long       start=System.nanoTime();
+        protected long             last_chunk, num_bytes, num_chunks, stall_time, apply_time;
+        protected long             low=-1;    // all seqnos <= low have been seen (or are out of the window)
+        protected long             high=-1;   // the highest seqno seen
+        protected Set<Long>        above;     // seqnos > low which have been seen (received out of order)
+
+        protected Transfer(Span span, Attributes attrs, long req_seqno) {
+            this.span=span;
+            this.attrs=attrs;
+            this.req_seqno=req_seqno;
+        }
+
+        /** Returns false if a message with the given seqno has already been seen, i.e. this one is a duplicate */
+        protected synchronized boolean firstTime(long seqno) {
+            if(seqno < 0)
+                return true;
+            if(low < 0) {
+                low=high=seqno;
+                return true;
+            }
+            if(seqno <= low)
+                return false;
+            if(above == null)
+                above=new HashSet<>();
+            if(!above.add(seqno))
+                return false;
+            high=Math.max(high, seqno);
+            if(above.size() > SEQNO_WINDOW) { // gaps (e.g. seqnos of other messages) are never filled: move the window
+                long new_low=high - SEQNO_WINDOW;
+                above.removeIf(s -> s <= new_low);
+                low=Math.max(low, new_low);
+            }
+            while(above.remove(low + 1))
+                low++;
+            return true;
+        }
+
+        /** Records a chunk; the time between the end of the previous chunk and the start of this one is a stall */
+        protected synchronized void chunk(int length, long time_ns, boolean apply) {
+            long now=System.nanoTime();
+            if(last_chunk > 0)
+                stall_time+=Math.max(0, now - time_ns - last_chunk);
+            last_chunk=now;
+            num_bytes+=length;
+            num_chunks++;
+            if(apply)
+                apply_time+=time_ns;
+            chunk_sizes.record(length, attrs);
+            chunk_times.record(TimeUnit.NANOSECONDS.toMicros(time_ns), attrs);
+            bytes.add(length, attrs);
+        }
+
+        protected synchronized void apply(long time_ns) {
+            apply_time+=time_ns;
+        }
+
+        protected synchronized void end(String error) {
+            long duration=System.nanoTime() - start;
+            span.setAttribute("state.bytes", num_bytes)
+              .setAttribute("state.chunks", num_chunks)
+              .setAttribute("state.bytes_per_sec", duration > 0? (long)(num_bytes * 1e9 / duration) : 0)
+              .setAttribute("state.stall_time_ms", TimeUnit.NANOSECONDS.toMillis(stall_time))
+              .setAttribute("state.apply_time_ms", TimeUnit.NANOSECONDS.toMillis(apply_time));
+            if(error != null)
+                span.setStatus(StatusCode.ERROR, error);
+            span.end();
+        }
+    }
+}
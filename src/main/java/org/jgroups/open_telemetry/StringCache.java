@@ -0,0 +1,121 @@
+package org.jgroups.open_telemetry;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache of ASCII strings, used to read strings written by
+ * {@link org.jgroups.util.Util#writeString(String, java.io.DataOutput)} without creating a new string if an equal one
+ * is in the cache: the bytes are read into a (per-thread) buffer and compared to the cached strings. Strings are added
+ * until the cache is full; they're never removed.
+ * @since  1.0.0
+ */
+public class StringCache {
+    /** Strings longer than this are neither cached nor looked up */
+    public static final int                      MAX_LENGTH=128;
+    protected static final ThreadLocal<byte[]>   BUFFER=ThreadLocal.withInitial(() -> new byte[MAX_LENGTH]);
+
+    protected final AtomicReferenceArray<String> table; // open addressing with linear probing
+    protected final int                          mask, max_size;
+    protected final AtomicInteger                size=new AtomicInteger();
+
+    public StringCache(int max_size) {
+        if(max_size <= 0)
+            throw new IllegalArgumentException("max_size must be > 0");
+        this.max_size=max_size;
+        int capacity=Integer.highestOneBit(max_size * 2 - 1) << 1; // load factor <= 0.5
+        table=new AtomicReferenceArray<>(capacity);
+        mask=capacity - 1;
+    }
+
+    public int size()    {return size.get();}
+    public int maxSize() {return max_size;}
+
+    /** Adds an ASCII string; returns the cached instance, or the string itself if not cached */
+    public String add(String s) {
+        if(s == null || s.length() > MAX_LENGTH)
+            return s;
+        byte[] buf=s.getBytes(StandardCharsets.ISO_8859_1);
+        String existing=get(buf, buf.length);
+        return existing != null? existing : add(buf, buf.length, s);
+    }
+
+    /**
+     * Reads a string written by {@link org.jgroups.util.Util#writeString(String, java.io.DataOutput)}. If an equal
+     * string is cached, the cached instance is returned; else a new string is created and, if add is true and the
+     * cache is not yet full, added
+     */
+    public String read(DataInput in, boolean add) throws IOException {
+        if(!in.readBoolean()) // not ASCII
+            return in.readUTF();
+        int len=in.readInt();
+        byte[] buf=len <= MAX_LENGTH? BUFFER.get() : new byte[len];
+        in.readFully(buf, 0, len);
+        if(len > MAX_LENGTH)
+            return new String(buf, StandardCharsets.ISO_8859_1);
+        String s=get(buf, len);
+        if(s != null)
+            return s;
+        s=new String(buf, 0, len, StandardCharsets.ISO_8859_1);
+        return add? add(buf, len, s) : s;
+    }
+
+    /** Reads a string without a cache */
+    public static String read(DataInput in) throws IOException {
+        if(!in.readBoolean())
+            return in.readUTF();
+        byte[] buf=new byte[in.readInt()];
+        in.readFully(buf);
+        return new String(buf, StandardCharsets.ISO_8859_1);
+    }
+
+    public String toString() {
+        return String.format("%d/%d strings", size(), max_size);
+    }
+
+    protected String get(byte[] buf, int len) {
+        for(int i=hash(buf, len), probes=0; probes <= mask; i++, probes++) {
+            String s=table.get(i & mask);
+            if(s == null)
+                return null;
+            if(equals(s, buf, len))
+                return s;
+        }
+        return null;
+    }
+
+    protected String add(byte[] buf, int len, String s) {
+        if(size.get() >= max_size)
+            return s;
+        for(int i=hash(buf, len), probes=0; probes <= mask; i++, probes++) {
+            int index=i & mask;
+            if(table.compareAndSet(index, null, s)) {
+                size.incrementAndGet();
+                return s;
+            }
+            String existing=table.get(index);
+            if(equals(existing, buf, len)) // added concurrently
+                return existing;
+        }
+        return s;
+    }
+
+    protected static int hash(byte[] buf, int len) {
+        int h=0;
+        for(int i=0; i < len; i++)
+            h=31 * h + buf[i];
+        return h ^ (h >>> 16);
+    }
+
+    protected static boolean equals(String s, byte[] buf, int len) {
+        if(s.length() != len)
+            return false;
+        for(int i=0; i < len; i++)
+            if(s.charAt(i) != buf[i])
+                return false;
+        return true;
+    }
+}
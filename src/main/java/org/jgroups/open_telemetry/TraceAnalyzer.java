@@ -0,0 +1,409 @@
+package org.jgroups.open_telemetry;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.jgroups.util.Util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Analyzes collected spans and reports where time went across the cluster. For each trace, the critical path (across
+ * nodes) is computed, and the self-time (duration minus the time covered by child spans) of each span is aggregated
+ * by span name, node and layer.<br/>
+ * Spans are processed in a streaming fashion: only compact records of the spans of incomplete traces are kept. As the
+ * spans of a trace are usually exported by different nodes, and spans on other nodes often end after the root span
+ * (e.g. when the root span ends once a message has been sent), a trace is considered complete when it has been idle:
+ * when the latest end time of its spans is more than idle_time behind the watermark (the latest end time of all spans
+ * added so far). Spans therefore don't need to be added in order, as long as they are not out of order by more than
+ * idle_time. Traces are also analyzed when more than max_pending_traces traces are pending, or on {@link #finish()}.
+ * <br/>
+ * Completed traces are analyzed in parallel by an executor; the number of traces queued for analysis is bounded, so
+ * a fast producer is slowed down rather than piling up traces in memory. Pending spans are partitioned by trace-ID
+ * into shards, so {@link #add(SpanData)} can also be called concurrently, e.g. when the analyzer is used directly as a
+ * {@link SpanExporter}.
+ * @since  1.0.0
+ */
+public class TraceAnalyzer implements SpanExporter {
+    /** The attribute used to determine the node of a span; if absent, the resource's service name is used */
+    public static final AttributeKey<String> NODE=TracingRuntime.NODE;
+    /**
+     * The attribute used to determine the layer of a span: the JGroups protocol which created it. If absent (e.g.
+     * application spans), the instrumentation scope name is used
+     */
+    public static final AttributeKey<String> LAYER=TracingRuntime.PROTOCOL;
+    protected static final AttributeKey<String> SERVICE_NAME=AttributeKey.stringKey("service.name");
+
+    protected final Shard[]              shards;
+    protected final int                  max_pending_traces_per_shard;
+    protected final Executor             executor;
+    protected final int                  max_queued_traces;
+    protected final Semaphore            queued_traces;
+    protected final Map<Key,Stats>       stats=new ConcurrentHashMap<>();
+    protected final LongAdder            num_spans=new LongAdder(), num_traces=new LongAdder(),
+                                         num_incomplete_traces=new LongAdder();
+    protected final AtomicLong           watermark=new AtomicLong(Long.MIN_VALUE);
+    protected long                       idle_time=TimeUnit.SECONDS.toNanos(10);
+
+    public TraceAnalyzer() {
+        this(Runtime.getRuntime().availableProcessors() * 4, 100_000);
+    }
+
+    public TraceAnalyzer(int num_shards, int max_pending_traces) {
+        this(num_shards, max_pending_traces, ForkJoinPool.commonPool(), 1024);
+    }
+
+    public TraceAnalyzer(int num_shards, int max_pending_traces, Executor executor, int max_queued_traces) {
+        if(num_shards <= 0 || max_pending_traces <= 0 || max_queued_traces <= 0)
+            throw new IllegalArgumentException("num_shards, max_pending_traces and max_queued_traces must be > 0");
+        this.executor=Objects.requireNonNull(executor);
+        this.max_queued_traces=max_queued_traces;
+        this.queued_traces=new Semaphore(max_queued_traces);
+        shards=new Shard[num_shards];
+        for(int i=0; i < shards.length; i++)
+            shards[i]=new Shard();
+        max_pending_traces_per_shard=Math.max(1, max_pending_traces / num_shards);
+    }
+
+    public long numSpans()            {return num_spans.sum();}
+    public long numTraces()           {return num_traces.sum();}
+    public long numIncompleteTraces() {return num_incomplete_traces.sum();}
+    public long idleTime()            {return TimeUnit.NANOSECONDS.toMillis(idle_time);}
+
+    /** Sets the time by which a trace's spans have to be behind the watermark for the trace to be complete */
+    public TraceAnalyzer idleTime(long time, TimeUnit unit) {
+        idle_time=unit.toNanos(time);
+        return this;
+    }
+
+    /** Adds all spans (in encounter order) and waits until all traces have been analyzed */
+    public TraceAnalyzer analyze(Stream<? extends SpanData> spans) {
+        spans.sequential().forEach(this::add);
+        return finish();
+    }
+
+    public TraceAnalyzer add(SpanData span) {
+        num_spans.increment();
+        Shard shard=shards[(span.getTraceId().hashCode() & Integer.MAX_VALUE) % shards.length];
+        SpanRecord rec=new SpanRecord(span);
+        long wm=watermark.accumulateAndGet(rec.end, Math::max);
+        List<Trace> completed=shard.add(span.getTraceId(), rec, max_pending_traces_per_shard, wm - idle_time);
+        if(completed != null)
+            completed.forEach(this::submit);
+        return this;
+    }
+
+    /** Analyzes all pending traces, even if their root span has not been added, and waits until all are done */
+    public TraceAnalyzer finish() {
+        for(Shard shard: shards)
+            shard.removeAll().forEach(this::submit);
+        queued_traces.acquireUninterruptibly(max_queued_traces);
+        queued_traces.release(max_queued_traces);
+        return this;
+    }
+
+    /** Returns the top N contributors, sorted by time on the critical path, then by self-time */
+    public List<Hotspot> top(int n) {
+        return stats.entrySet().stream().map(e -> new Hotspot(e.getKey(), e.getValue()))
+          .sorted(Comparator.comparingLong((Hotspot h) -> h.critical_path_time)
+                    .thenComparingLong(h -> h.self_time).reversed())
+          .limit(n).collect(Collectors.toList());
+    }
+
+    public String report(int n) {
+        StringBuilder sb=new StringBuilder(String.format("%,d spans in %,d traces (%,d without root span); top %d:\n",
+                                                         numSpans(), numTraces(), numIncompleteTraces(), n));
+        for(Hotspot h: top(n))
+            sb.append(h).append('\n');
+        return sb.toString();
+    }
+
+    public void reset() {
+        for(Shard shard: shards)
+            shard.removeAll();
+        queued_traces.acquireUninterruptibly(max_queued_traces);
+        queued_traces.release(max_queued_traces);
+        stats.clear();
+        num_spans.reset();
+        num_traces.reset();
+        num_incomplete_traces.reset();
+        watermark.set(Long.MIN_VALUE);
+    }
+
+    public CompletableResultCode export(Collection<SpanData> spans) {
+        spans.forEach(this::add);
+        return CompletableResultCode.ofSuccess();
+    }
+
+    public CompletableResultCode flush() {
+        return CompletableResultCode.ofSuccess();
+    }
+
+    public CompletableResultCode shutdown() {
+        finish();
+        return CompletableResultCode.ofSuccess();
+    }
+
+    public String toString() {
+        return report(10);
+    }
+
+    protected void submit(Trace trace) {
+        queued_traces.acquireUninterruptibly(); // blocks when too many traces are queued
+        try {
+            executor.execute(() -> {
+                try {
+                    process(trace);
+                }
+                finally {
+                    queued_traces.release();
+                }
+            });
+        }
+        catch(RuntimeException ex) {
+            queued_traces.release();
+            throw ex;
+        }
+    }
+
+    protected void process(Trace trace) {
+        num_traces.increment();
+        if(!trace.has_root)
+            num_incomplete_traces.increment();
+        Map<String,SpanRecord> map=new HashMap<>(trace.spans.size());
+        for(SpanRecord rec: trace.spans)
+            map.put(rec.span_id, rec);
+        List<SpanRecord> roots=new ArrayList<>(1);
+        for(SpanRecord rec: trace.spans) {
+            SpanRecord parent=rec.parent_id != null? map.get(rec.parent_id) : null;
+            if(parent != null)
+                parent.addChild(rec);
+            else
+                roots.add(rec);
+        }
+        for(SpanRecord rec: trace.spans) {
+            Stats s=stats.computeIfAbsent(rec.key, k -> new Stats());
+            s.count.increment();
+            s.self_time.add(rec.selfTime());
+        }
+        for(SpanRecord root: roots) {
+            root.computeSubtreeEnd();
+            criticalPath(root, root.subtree_end);
+        }
+    }
+
+    /**
+     * Walks backwards from limit (the latest end time of the span and its descendants, which may be after the end of
+     * the span, e.g. for spans on other nodes): the child whose subtree ends last before the cursor is on the critical
+     * path. The gaps between children are attributed to the span itself, as far as they lie within the span; gaps
+     * outside of it (e.g. the time between the end of a send span and the start of a remote deliver span) are not
+     * attributed to any span.
+     */
+    protected void criticalPath(SpanRecord span, long limit) {
+        long cursor=limit, self=0;
+        for(SpanRecord child: span.childrenByEndDesc()) {
+            if(cursor <= span.start)
+                break;
+            if(child.start >= cursor)
+                continue; // overlaps with a child already on the critical path
+            long child_end=Math.min(child.subtree_end, cursor);
+            self+=span.overlap(child_end, cursor);
+            criticalPath(child, child_end);
+            cursor=Math.max(child.start, span.start);
+        }
+        self+=span.overlap(span.start, cursor);
+        stats.computeIfAbsent(span.key, k -> new Stats()).critical_path_time.add(self);
+    }
+
+
+    /** Aggregation key of a span */
+    protected static class Key {
+        protected final String name, node, layer;
+
+        protected Key(String name, String node, String layer) {
+            this.name=name;
+            this.node=node;
+            this.layer=layer;
+        }
+
+        public int hashCode() {
+            return Objects.hash(name, node, layer);
+        }
+
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key))
+                return false;
+            Key k=(Key)obj;
+            return name.equals(k.name) && node.equals(k.node) && layer.equals(k.layer);
+        }
+    }
+
+    protected static class Stats {
+        protected final LongAdder count=new LongAdder(), self_time=new LongAdder(), critical_path_time=new LongAdder();
+    }
+
+    /** A top latency contributor; times are in nanoseconds */
+    public static class Hotspot {
+        public final String name, node, layer;
+        public final long   count, self_time, critical_path_time;
+
+        protected Hotspot(Key key, Stats s) {
+            name=key.name;
+            node=key.node;
+            layer=key.layer;
+            count=s.count.sum();
+            self_time=s.self_time.sum();
+            critical_path_time=s.critical_path_time.sum();
+        }
+
+        public String toString() {
+            return String.format("%s [node=%s, layer=%s]: critical path=%s, self-time=%s, count=%,d",
+                                 name, node, layer, Util.printTime(critical_path_time, TimeUnit.NANOSECONDS),
+                                 Util.printTime(self_time, TimeUnit.NANOSECONDS), count);
+        }
+    }
+
+    /** Compact representation of a span; the {@link SpanData} itself is not retained */
+    protected static class SpanRecord {
+        protected final String     span_id, parent_id;
+        protected final Key        key;
+        protected final long       start, end;
+        protected final boolean    root;
+        protected long             subtree_end; // the latest end time of this span and its descendants
+        protected List<SpanRecord> children;
+
+        protected SpanRecord(SpanData span) {
+            span_id=span.getSpanId();
+            SpanContext parent=span.getParentSpanContext();
+            parent_id=parent.isValid()? parent.getSpanId() : null;
+            root=parent_id == null;
+            key=new Key(span.getName(), node(span), layer(span));
+            start=span.getStartEpochNanos();
+            end=Math.max(start, span.getEndEpochNanos());
+            subtree_end=end;
+        }
+
+        protected void addChild(SpanRecord child) {
+            if(children == null)
+                children=new ArrayList<>(2);
+            children.add(child);
+        }
+
+        protected long computeSubtreeEnd() {
+            if(children != null) {
+                for(SpanRecord child: children)
+                    subtree_end=Math.max(subtree_end, child.computeSubtreeEnd());
+            }
+            return subtree_end;
+        }
+
+        /** Returns the children, sorted by the end time of their subtrees (latest first) */
+        protected List<SpanRecord> childrenByEndDesc() {
+            if(children == null)
+                return Collections.emptyList();
+            children.sort(Comparator.comparingLong((SpanRecord r) -> r.subtree_end).reversed());
+            return children;
+        }
+
+        /** Returns the length of the intersection of [from,to] with this span */
+        protected long overlap(long from, long to) {
+            return Math.max(0, Math.min(to, end) - Math.max(from, start));
+        }
+
+        /** The duration minus the union of the child spans' intervals (clipped to this span) */
+        protected long selfTime() {
+            long duration=end - start;
+            if(children == null)
+                return duration;
+            children.sort(Comparator.comparingLong(r -> r.start));
+            long covered=0, cur_start=-1, cur_end=-1;
+            for(SpanRecord c: children) {
+                long s=Math.max(c.start, start), e=Math.min(c.end, end);
+                if(e <= s)
+                    continue;
+                if(s > cur_end) {
+                    covered+=cur_end - cur_start;
+                    cur_start=s;
+                    cur_end=e;
+                }
+                else
+                    cur_end=Math.max(cur_end, e);
+            }
+            covered+=cur_end - cur_start;
+            return Math.max(0, duration - covered);
+        }
+
+        protected static String node(SpanData span) {
+            String node=span.getAttributes().get(NODE);
+            if(node == null) {
+                Resource r=span.getResource();
+                node=r != null? r.getAttribute(SERVICE_NAME) : null;
+            }
+            return node != null? node : "n/a";
+        }
+
+        protected static String layer(SpanData span) {
+            String layer=span.getAttributes().get(LAYER);
+            return layer != null? layer : span.getInstrumentationScopeInfo().getName();
+        }
+    }
+
+    protected static class Trace {
+        protected final List<SpanRecord> spans=new ArrayList<>();
+        protected boolean                has_root;
+        protected long                   max_end=Long.MIN_VALUE; // the latest end time of all spans
+
+        protected void add(SpanRecord rec) {
+            spans.add(rec);
+            has_root|=rec.root;
+            max_end=Math.max(max_end, rec.end);
+        }
+    }
+
+    /** Pending (incomplete) traces of a subset of trace-IDs */
+    protected static class Shard {
+        protected final LinkedHashMap<String,Trace> traces=new LinkedHashMap<>();
+
+        /**
+         * Adds a span and returns the traces that are ready to be analyzed, or null. Traces are kept in the order in
+         * which they were last updated; the least recently updated traces are complete if their latest span ended
+         * before threshold, or are evicted if there are more than max_pending traces
+         */
+        protected synchronized List<Trace> add(String trace_id, SpanRecord rec, int max_pending, long threshold) {
+            Trace trace=traces.remove(trace_id); // re-inserted at the end
+            if(trace == null)
+                trace=new Trace();
+            trace.add(rec);
+            traces.put(trace_id, trace);
+            List<Trace> retval=null;
+            for(Iterator<Trace> it=traces.values().iterator(); it.hasNext();) {
+                Trace oldest=it.next();
+                if(traces.size() <= max_pending && oldest.max_end >= threshold)
+                    break;
+                it.remove();
+                if(retval == null)
+                    retval=new ArrayList<>(1);
+                retval.add(oldest);
+            }
+            return retval;
+        }
+
+        protected synchronized List<Trace> removeAll() {
+            List<Trace> retval=new ArrayList<>(traces.values());
+            traces.clear();
+            return retval;
+        }
+    }
+}
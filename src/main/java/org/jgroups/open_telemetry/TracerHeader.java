@@ -7,22 +7,46 @@ import org.jgroups.util.Util;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
 /**
- * Header which carries an OpenTelemetry {@link io.opentelemetry.api.trace.Span} between requests and responses
+ * Header which carries an OpenTelemetry {@link io.opentelemetry.api.trace.Span} between requests and responses.
+ * It also carries (optional) {@link io.opentelemetry.api.baggage.Baggage} entries. Keys registered with
+ * {@link #internBaggageKeys(Collection)} and their values are interned on reception, as the values are usually
+ * taken from a small set (e.g. tenant or request class): they're looked up by their bytes, so no strings are created
+ * for interned keys and values. The number of keys and of values per key is bounded, so a key with many values (e.g.
+ * a request ID) cannot use up the cache of the others.<br/>
+ * Baggage is flagged in the (otherwise unused) high bits of the number of context entries, so a header without
+ * baggage has the same wire format as before baggage support was added. Receivers of a header with baggage need to
+ * support baggage, too.
  * @author Bela Ban
  * @since  1.0.0
  */
 public class TracerHeader extends Header {
     protected static final short       ID=1050;
+    /** Set in the number of context entries if baggage follows */
+    protected static final int         BAGGAGE_FLAG=1 << 30;
+    /** Max number of baggage keys to intern */
+    protected static final int         MAX_BAGGAGE_KEYS=64;
+    /** Max number of values to intern per baggage key; beyond this, values are read but not interned */
+    protected static final int         MAX_VALUES_PER_KEY=64;
+    // the keys added by the propagator (only these are interned)
+    protected static final StringCache CTX_KEYS=new StringCache(4);
+    protected static final StringCache BAGGAGE_KEYS=new StringCache(MAX_BAGGAGE_KEYS);
+    protected static final Map<String,StringCache> BAGGAGE_VALUES=new ConcurrentHashMap<>();
     protected final Map<String,String> ctx=new HashMap<>();
+    protected Map<String,String>       baggage;
 
     static {
         ClassConfigurator.add(ID, TracerHeader.class);
+        for(String key: List.of("traceparent", "tracestate"))
+            CTX_KEYS.add(key);
     }
 
     public TracerHeader() {
@@ -36,6 +60,15 @@ public class TracerHeader extends Header {
         return TracerHeader::new;
     }
 
+    /** Interns the given baggage keys and (up to {@link #MAX_VALUES_PER_KEY}) their values on reception */
+    public static void internBaggageKeys(Collection<String> keys) {
+        for(String key: keys) {
+            String k=BAGGAGE_KEYS.add(key);
+            if(BAGGAGE_VALUES.size() < MAX_BAGGAGE_KEYS)
+                BAGGAGE_VALUES.computeIfAbsent(k, __ -> new StringCache(MAX_VALUES_PER_KEY));
+        }
+    }
+
     public void put(String key, String value) {
         ctx.put(key, value);
     }
@@ -44,38 +77,82 @@ public class TracerHeader extends Header {
 
     public Set<String> keys() {return ctx.keySet();}
 
+    public void putBaggage(String key, String value) {
+        if(baggage == null)
+            baggage=new HashMap<>(4);
+        baggage.put(key, value);
+    }
+
+    /** Returns the baggage entries, or null if none were added */
+    public Map<String,String> baggage() {return baggage;}
+
     public int serializedSize() {
-        int size=Integer.BYTES;
-        int num_attrs=ctx.size();
-        if(num_attrs > 0) {
-            for(Map.Entry<String,String> entry: ctx.entrySet()) {
-                String key=entry.getKey();
-                String val=entry.getValue();
-                size+=Util.size(key) + Util.size(val);
-            }
-        }
-        return size;
+        int size=Integer.BYTES + size(ctx);
+        return hasBaggage()? size + Integer.BYTES + size(baggage) : size;
     }
 
     public void writeTo(DataOutput out) throws IOException {
-        out.writeInt(ctx.size());
-        if(!ctx.isEmpty()) {
-            for(Map.Entry<String,String> e: ctx.entrySet()) {
-                Util.writeString(e.getKey(), out);
-                Util.writeString(e.getValue(), out);
-            }
+        boolean has_baggage=hasBaggage();
+        out.writeInt(has_baggage? ctx.size() | BAGGAGE_FLAG : ctx.size());
+        writeEntries(ctx, out);
+        if(has_baggage) {
+            out.writeInt(baggage.size());
+            writeEntries(baggage, out);
         }
     }
 
     public void readFrom(DataInput in) throws IOException, ClassNotFoundException {
         int size=in.readInt();
+        boolean has_baggage=(size & BAGGAGE_FLAG) != 0;
+        size&=~BAGGAGE_FLAG;
         if(size > 0) {
             for(int i=0; i < size; i++)
-                ctx.put(Util.readString(in), Util.readString(in));
+                ctx.put(CTX_KEYS.read(in, false), StringCache.read(in));
+        }
+        if(!has_baggage)
+            return;
+        size=in.readInt();
+        if(size > 0) {
+            baggage=new HashMap<>(size);
+            for(int i=0; i < size; i++) {
+                String key=BAGGAGE_KEYS.read(in, false);
+                StringCache values=BAGGAGE_VALUES.get(key);
+                baggage.put(key, values != null? values.read(in, true) : StringCache.read(in));
+            }
         }
     }
 
     public String toString() {
-        return ctx.toString();
+        return baggage == null? ctx.toString() : String.format("%s, baggage: %s", ctx, baggage);
+    }
+
+    /** Returns the number of bytes a baggage entry adds to the serialized header */
+    public static int size(String key, String value) {
+        return size(key) + size(value);
+    }
+
+    /** Size of a string written by {@link Util#writeString(String, DataOutput)}: ASCII strings use an int length */
+    protected static int size(String s) {
+        return Util.isAsciiString(s)? Byte.BYTES + Integer.BYTES + s.length() : Util.size(s);
+    }
+
+    protected static int size(Map<String,String> map) {
+        int size=0;
+        if(map != null) {
+            for(Map.Entry<String,String> entry: map.entrySet())
+                size+=size(entry.getKey(), entry.getValue());
+        }
+        return size;
+    }
+
+    protected boolean hasBaggage() {
+        return baggage != null && !baggage.isEmpty();
+    }
+
+    protected static void writeEntries(Map<String,String> map, DataOutput out) throws IOException {
+        for(Map.Entry<String,String> e: map.entrySet()) {
+            Util.writeString(e.getKey(), out);
+            Util.writeString(e.getValue(), out);
+        }
     }
 }
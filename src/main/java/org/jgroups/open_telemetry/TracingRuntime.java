@@ -0,0 +1,219 @@
+package org.jgroups.open_telemetry;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.common.AttributesBuilder;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.trace.Tracer;
+import org.jgroups.Address;
+import org.jgroups.Version;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Tracing state shared by all {@link org.jgroups.protocols.OPEN_TELEMETRY} instances (channels and fork channels) in a
+ * JVM: the {@link OpenTelemetry} instance (and thus the export pipeline), the {@link Tracer} and {@link Meter}, and
+ * precomputed {@link Attributes} per cluster, channel and peer address.<br/>
+ * Each channel registers and gets a {@link ChannelTracing}, which enforces a per-channel quota of spans per second,
+ * so that a busy channel cannot use up the tracing budget of the others. Fork channels share the OPEN_TELEMETRY
+ * protocol of their main channel; they get their own {@link ChannelTracing} (see {@link ChannelTracing#fork}) and
+ * thus their own quota.<br/>
+ * By default, {@link GlobalOpenTelemetry} is used; to use a different instance, call {@link #init(OpenTelemetry)}
+ * before the channels are started.
+ * @since  1.0.0
+ */
+public class TracingRuntime {
+    public static final AttributeKey<String> CLUSTER=AttributeKey.stringKey("cluster");
+    public static final AttributeKey<String> NODE=AttributeKey.stringKey("node");
+    /** The protocol which created a span; used as the layer of the span by {@link TraceAnalyzer} */
+    public static final AttributeKey<String> PROTOCOL=AttributeKey.stringKey("protocol");
+    public static final AttributeKey<String> FROM=AttributeKey.stringKey("from");
+    public static final AttributeKey<String> FORK_STACK=AttributeKey.stringKey("fork-stack");
+    public static final AttributeKey<String> FORK_CHANNEL=AttributeKey.stringKey("fork-channel");
+    /** Max number of peer addresses for which attributes are cached per channel */
+    protected static final int               MAX_PEERS=1024;
+    /** Max number of fork channels per channel; messages of additional fork channels count against the main channel */
+    protected static final int               MAX_FORKS=128;
+    protected static final String            INSTRUMENTATION_NAME="org.jgroups.trace";
+
+    protected static volatile TracingRuntime instance;
+
+    protected final OpenTelemetry            otel;
+    protected final Tracer                   tracer;
+    protected final Meter                    meter;
+    protected final Map<String,Attributes>   clusters=new ConcurrentHashMap<>();
+    protected final Map<ChannelTracing,Boolean> channels=new ConcurrentHashMap<>();
+
+    protected TracingRuntime(OpenTelemetry otel) {
+        this.otel=Objects.requireNonNull(otel);
+        this.tracer=otel.getTracer(INSTRUMENTATION_NAME, Version.printVersion());
+        this.meter=otel.getMeter(INSTRUMENTATION_NAME);
+    }
+
+    /** Returns the runtime, creating it with {@link GlobalOpenTelemetry} on first access */
+    public static TracingRuntime get() {
+        TracingRuntime rt=instance;
+        if(rt == null) {
+            synchronized(TracingRuntime.class) {
+                if((rt=instance) == null)
+                    instance=rt=new TracingRuntime(GlobalOpenTelemetry.get());
+            }
+        }
+        return rt;
+    }
+
+    /** Sets the OpenTelemetry instance used by all channels; channels which already registered keep the old one */
+    public static synchronized TracingRuntime init(OpenTelemetry otel) {
+        return instance=new TracingRuntime(otel);
+    }
+
+    public OpenTelemetry openTelemetry() {return otel;}
+    public Tracer        tracer()        {return tracer;}
+    public Meter         meter()         {return meter;}
+
+    public Collection<ChannelTracing> channels() {return Collections.unmodifiableSet(channels.keySet());}
+
+    /**
+     * Registers a channel
+     * @param cluster The cluster name (may be null if not yet connected)
+     * @param local_addr The address of the channel (may be null)
+     * @param protocol The name of the protocol creating the spans of the channel
+     * @param max_spans_per_sec The max number of spans per second for the channel; 0 means unlimited
+     */
+    public ChannelTracing register(String cluster, Address local_addr, String protocol, int max_spans_per_sec) {
+        AttributesBuilder builder=Attributes.builder().put(PROTOCOL, protocol);
+        if(cluster != null)
+            builder.putAll(clusters.computeIfAbsent(cluster, c -> Attributes.of(CLUSTER, c)));
+        if(local_addr != null)
+            builder.put(NODE, local_addr.toString());
+        ChannelTracing ch=new ChannelTracing(builder.build(), max_spans_per_sec);
+        channels.put(ch, Boolean.TRUE);
+        return ch;
+    }
+
+    public void unregister(ChannelTracing ch) {
+        if(ch != null)
+            channels.remove(ch);
+    }
+
+    public String toString() {
+        return String.format("%d channels, %d clusters", channels.size(), clusters.size());
+    }
+
+
+    /** The tracing state of a single channel */
+    public static class ChannelTracing {
+        protected final Attributes             attrs;
+        protected final Map<Address,Attributes> peers=new ConcurrentHashMap<>();
+        // fork channels, keyed by fork stack ID and fork channel ID
+        protected final Map<String,Map<String,ChannelTracing>> forks=new ConcurrentHashMap<>();
+        protected volatile int                 max_spans_per_sec;
+        protected final AtomicLong             window_start=new AtomicLong(System.nanoTime());
+        protected final AtomicLong             spans_in_window=new AtomicLong();
+        protected final LongAdder              num_dropped=new LongAdder();
+
+        protected ChannelTracing(Attributes attrs, int max_spans_per_sec) {
+            this.attrs=attrs;
+            this.max_spans_per_sec=max_spans_per_sec;
+        }
+
+        public int            maxSpansPerSec()      {return max_spans_per_sec;}
+
+        public ChannelTracing maxSpansPerSec(int m) {
+            max_spans_per_sec=m;
+            forEachFork(f -> f.maxSpansPerSec(m));
+            return this;
+        }
+
+        /** Returns the number of spans dropped by this channel and its fork channels */
+        public long numDropped() {
+            long[] dropped={num_dropped.sum()};
+            forEachFork(f -> dropped[0]+=f.numDropped());
+            return dropped[0];
+        }
+
+        public void resetStats() {
+            num_dropped.reset();
+            forEachFork(ChannelTracing::resetStats);
+        }
+
+        /** Returns the attributes of the channel (cluster and node) */
+        public Attributes attributes() {return attrs;}
+
+        /** Returns the attributes of the channel plus the given peer address */
+        public Attributes attributes(Address peer) {
+            if(peer == null)
+                return attrs;
+            Attributes a=peers.get(peer);
+            if(a != null)
+                return a;
+            a=attrs.toBuilder().put(FROM, peer.toString()).build();
+            if(peers.size() < MAX_PEERS)
+                peers.putIfAbsent(peer, a);
+            return a;
+        }
+
+        /**
+         * Returns the tracing state of a fork channel, which has its own quota and attributes, but inherits
+         * max_spans_per_sec from this channel. Returns this channel if either ID is null, or if there are too many
+         * fork channels
+         */
+        public ChannelTracing fork(String fork_stack_id, String fork_channel_id) {
+            if(fork_stack_id == null || fork_channel_id == null)
+                return this;
+            Map<String,ChannelTracing> stack=forks.get(fork_stack_id);
+            ChannelTracing ch=stack != null? stack.get(fork_channel_id) : null;
+            if(ch != null)
+                return ch;
+            if(numForks() >= MAX_FORKS)
+                return this;
+            Attributes a=attrs.toBuilder().put(FORK_STACK, fork_stack_id).put(FORK_CHANNEL, fork_channel_id).build();
+            return forks.computeIfAbsent(fork_stack_id, s -> new ConcurrentHashMap<>())
+              .computeIfAbsent(fork_channel_id, c -> new ChannelTracing(a, max_spans_per_sec));
+        }
+
+        public int numForks() {
+            return forks.values().stream().mapToInt(Map::size).sum();
+        }
+
+        /** Removes the cached attributes of peers, e.g. on a view change */
+        public void clearPeers() {
+            peers.clear();
+            forEachFork(ChannelTracing::clearPeers);
+        }
+
+        /** Returns true if a span can be created, or false if the quota for the current second is used up */
+        public boolean tryAcquire() {
+            int max=max_spans_per_sec;
+            if(max <= 0)
+                return true;
+            long now=System.nanoTime(), start=window_start.get();
+            if(now - start >= TimeUnit.SECONDS.toNanos(1) && window_start.compareAndSet(start, now))
+                spans_in_window.set(0);
+            if(spans_in_window.incrementAndGet() <= max)
+                return true;
+            num_dropped.increment();
+            return false;
+        }
+
+        public String toString() {
+            return String.format("%s (max %d spans/sec, %d dropped, %d fork channels)",
+                                 attrs, max_spans_per_sec, numDropped(), numForks());
+        }
+
+        protected void forEachFork(Consumer<ChannelTracing> c) {
+            for(Map<String,ChannelTracing> stack: forks.values())
+                stack.values().forEach(c);
+        }
+    }
+}
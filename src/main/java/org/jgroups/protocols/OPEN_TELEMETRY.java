@@ -1,7 +1,9 @@
 package org.jgroups.protocols;
 
-import io.opentelemetry.api.GlobalOpenTelemetry;
 import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.baggage.Baggage;
+import io.opentelemetry.api.baggage.BaggageBuilder;
+import io.opentelemetry.api.common.AttributeKey;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.SpanKind;
 import io.opentelemetry.api.trace.StatusCode;
@@ -10,52 +12,253 @@ import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
 import io.opentelemetry.context.Context;
 import io.opentelemetry.context.Scope;
 import io.opentelemetry.context.propagation.TextMapGetter;
-import org.jgroups.Message;
-import org.jgroups.Version;
+import org.jgroups.*;
 import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
+import org.jgroups.conf.AttributeType;
 import org.jgroups.conf.ClassConfigurator;
-import org.jgroups.open_telemetry.TracerHeader;
+import org.jgroups.open_telemetry.*;
+import org.jgroups.stack.DiagnosticsHandler;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
 
 /**
  * Provides Open Telemetry (https://opentelemetry.io/) tracing for JGroups. It should be placed just above the
  * transport.<br/>
  * When a message is sent, a {@link org.jgroups.open_telemetry.TracerHeader} is added with the (optional) parent span.
  * When received a new span is started (as a child span, if the parent span in the header is non-null), and ended when
- * the the thread returns.
+ * the the thread returns.<br/>
+ * Entries of the current {@link Baggage} whose keys are listed in {@link #baggage_keys} are propagated as well, up
+ * to {@link #max_baggage_size} bytes per message. The baggage of a single received message is current while the
+ * message is delivered, whether a span is created for it or not. Messages received in a batch are delivered by a
+ * single thread, so their baggage is <em>not</em> current during delivery: the whitelisted entries are recorded as
+ * attributes ({@code baggage.<key>}) of the message's span, and are dropped for messages without a span.<br/>
+ * State transfer messages are not traced individually, but as one span per state transfer on the requester and
+ * provider (see {@link StateTransferTracer}).<br/>
+ * The OpenTelemetry instance, tracer and span attributes are shared by all channels in the JVM (see
+ * {@link TracingRuntime}); the number of spans created for received messages can be limited per channel.<br/>
+ * Outside of diagnostic bursts, spans are only created for a fraction ({@link #sample_rate}) of the received
+ * messages. A diagnostic burst ({@link DiagnosticBurst}) traces all received messages for a given time and/or number
+ * of spans; it is started via JMX ({@link #startBurst(long, long)}, {@link #startClusterBurst(long, long)}) or probe
+ * ({@code probe.sh otel-burst=<duration>[,<max spans>]}, {@code probe.sh otel-burst-summary}).
  * @author Bela Ban
  * @since  1.0.0
  */
 @MBean(description="Records OpenTelemetry traces of sent and received messages")
-public class OPEN_TELEMETRY extends Protocol {
+public class OPEN_TELEMETRY extends Protocol implements DiagnosticsHandler.ProbeHandler {
     public static final short OPEN_TELEMETRY_ID=550; // as defined in jg-protocols.xml
     protected OpenTelemetry   otel;
     protected Tracer          tracer;
+    protected TracingRuntime  runtime;
+    protected TracingRuntime.ChannelTracing channel_tracing;
 
     @Property(description="When active, traces are recorded, otherwise not")
     protected boolean         active=true;
 
+    @Property(description="Fraction (0-1) of received messages for which spans are created, outside of diagnostic " +
+      "bursts")
+    protected double          sample_rate=1;
+
+    @Property(description="Default duration (ms) of a diagnostic burst started via probe",
+      type=AttributeType.TIME)
+    protected long            burst_duration=30_000;
+
+    @Property(description="Default max number of spans of a diagnostic burst started via probe (0 = unlimited)")
+    protected long            burst_max_spans;
+
+    @Property(description="Comma-separated list of baggage keys to propagate. Baggage is not propagated if empty")
+    protected String          baggage_keys;
+
+    @Property(description="Max number of bytes of baggage (keys and values) added to a message. Entries that " +
+      "would exceed this budget are dropped")
+    protected int             max_baggage_size=256;
+
+    @Property(description="Max number of spans per second created for received messages of this channel (0 = " +
+      "unlimited). Messages received when the quota is used up are delivered without creating spans")
+    protected int             max_spans_per_sec;
+
+    // the whitelisted baggage keys, and the span attributes with which they are recorded for batched messages
+    protected Map<String,AttributeKey<String>> baggage_whitelist=Collections.emptyMap();
+
+    protected final LongAdder num_baggage_dropped=new LongAdder();
+
+    protected StateTransferTracer state_tracer; // null if there is no state transfer protocol
+
+    // read once per message; replaced (never modified) when active, sample_rate or the burst change
+    protected volatile Config config=new Config(active, sample_rate, null);
+
+    protected volatile DiagnosticBurst last_burst;
+
+    protected static final String PROBE_BURST="otel-burst", PROBE_SUMMARY="otel-burst-summary";
+    // the number of times a cluster burst request is multicast, and the interval (ms) between the sends
+    protected static final int    BURST_SENDS=3;
+    protected static final long   BURST_SEND_INTERVAL=500;
+
     static {
         ClassConfigurator.addProtocol(OPEN_TELEMETRY_ID, OPEN_TELEMETRY.class);
+        ClassConfigurator.add(BurstHeader.ID, BurstHeader.class);
     }
 
     public boolean        active()          {return active;}
 
-    public OPEN_TELEMETRY active(boolean f) {active=activate(f); return this;}
+    public OPEN_TELEMETRY active(boolean f) {
+        active=activate(f);
+        updateConfig(c -> c.active(f));
+        return this;
+    }
+
+    public double         sampleRate()      {return sample_rate;}
+
+    public OPEN_TELEMETRY sampleRate(double r) {
+        if(r < 0 || r > 1)
+            throw new IllegalArgumentException("sample_rate must be in range [0..1]");
+        sample_rate=r;
+        updateConfig(c -> c.sampleRate(r));
+        return this;
+    }
+
+    public long           burstDuration()   {return burst_duration;}
+    public OPEN_TELEMETRY burstDuration(long d) {burst_duration=d; return this;}
+    public long           burstMaxSpans()   {return burst_max_spans;}
+    public OPEN_TELEMETRY burstMaxSpans(long m) {burst_max_spans=m; return this;}
+
+    public String         baggageKeys()     {return baggage_keys;}
+
+    public OPEN_TELEMETRY baggageKeys(String keys) {
+        baggage_keys=keys;
+        baggage_whitelist=parseBaggageKeys(keys);
+        TracerHeader.internBaggageKeys(baggage_whitelist.keySet());
+        return this;
+    }
+
+    public int            maxBaggageSize()  {return max_baggage_size;}
+    public OPEN_TELEMETRY maxBaggageSize(int s) {max_baggage_size=s; return this;}
+    public int            maxSpansPerSec()  {return max_spans_per_sec;}
+
+    public OPEN_TELEMETRY maxSpansPerSec(int m) {
+        max_spans_per_sec=m;
+        if(channel_tracing != null)
+            channel_tracing.maxSpansPerSec(m);
+        return this;
+    }
+
+    @ManagedAttribute(description="Number of baggage entries not propagated because max_baggage_size was exceeded")
+    public long getNumBaggageDropped() {return num_baggage_dropped.sum();}
+
+    @ManagedAttribute(description="Number of received messages for which no span was created as max_spans_per_sec " +
+      "was exceeded")
+    public long getNumSpansDropped() {return channel_tracing != null? channel_tracing.numDropped() : 0;}
+
+    @ManagedAttribute(description="True if a diagnostic burst is running")
+    public boolean isBurstActive() {return config.burst != null;}
+
+    @ManagedAttribute(description="Summary of the running diagnostic burst, or else of the last one")
+    public String getBurstSummary() {
+        DiagnosticBurst b=config.burst;
+        if(b == null)
+            b=last_burst;
+        return b != null? b.summary() : "n/a";
+    }
+
+    @ManagedOperation(description="Starts a diagnostic burst on this member: all received messages are traced for " +
+      "duration ms or until max_spans (0 = unlimited) spans have been created")
+    public void startBurst(long duration, long max_spans) {
+        startBurst(local_addr, ThreadLocalRandom.current().nextLong(), duration, max_spans);
+    }
+
+    @ManagedOperation(description="Starts a diagnostic burst on all members (best effort: the request is multicast " +
+      "unreliably a few times, as this protocol is placed below the reliable transmission protocols)")
+    public String startClusterBurst(long duration, long max_spans) {
+        long id=ThreadLocalRandom.current().nextLong();
+        startBurst(local_addr, id, duration, max_spans);
+        BurstHeader hdr=new BurstHeader(id, duration, max_spans);
+        sendBurst(hdr);
+        for(int i=1; i < BURST_SENDS; i++) // members ignore the duplicates
+            getTransport().getTimer().schedule(() -> sendBurst(hdr), i * BURST_SEND_INTERVAL, TimeUnit.MILLISECONDS);
+        return String.format("started locally; request multicast %d times (best effort: members which don't receive " +
+                               "any of them don't start the burst; check %s on the members)", BURST_SENDS, PROBE_SUMMARY);
+    }
+
+    @ManagedOperation(description="Stops the running diagnostic burst (if any) on this member")
+    public void stopBurst() {
+        DiagnosticBurst b=config.burst;
+        if(b != null)
+            stopBurst(b);
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_baggage_dropped.reset();
+        if(channel_tracing != null)
+            channel_tracing.resetStats();
+    }
+
+    public void init() throws Exception {
+        super.init();
+        if(max_baggage_size < 0)
+            throw new IllegalArgumentException("max_baggage_size must be >= 0");
+        if(max_spans_per_sec < 0)
+            throw new IllegalArgumentException("max_spans_per_sec must be >= 0");
+        if(sample_rate < 0 || sample_rate > 1)
+            throw new IllegalArgumentException("sample_rate must be in range [0..1]");
+        config=new Config(active, sample_rate, null);
+        baggage_whitelist=parseBaggageKeys(baggage_keys);
+        TracerHeader.internBaggageKeys(baggage_whitelist.keySet());
+    }
 
     public void start() throws Exception {
         super.start();
         activate(active);
+        getTransport().registerProbeHandler(this);
+    }
+
+    public void stop() {
+        super.stop();
+        getTransport().unregisterProbeHandler(this);
+        stopBurst();
+        if(state_tracer != null)
+            state_tracer.clear();
+    }
+
+    public void destroy() {
+        super.destroy();
+        if(runtime != null)
+            runtime.unregister(channel_tracing);
+    }
+
+    public Object down(Event evt) {
+        Object retval=down_prot.down(evt);
+        switch(evt.getType()) {
+            case Event.CONNECT:
+            case Event.CONNECT_USE_FLUSH:
+            case Event.CONNECT_WITH_STATE_TRANSFER:
+            case Event.CONNECT_WITH_STATE_TRANSFER_USE_FLUSH:
+                if(runtime != null) // the cluster name and local address are now known
+                    registerChannel();
+                break;
+            case Event.VIEW_CHANGE:
+                if(channel_tracing != null)
+                    channel_tracing.clearPeers();
+                break;
+        }
+        return retval;
     }
 
     public Object down(Message msg) {
-        if(!active)
+        if(!config.enabled)
             return down_prot.down(msg);
+        byte state_type=stateType(msg);
+        if(state_type != StateTransferTracer.NONE)
+            return downState(msg, state_type);
         TracerHeader hdr=new TracerHeader();
         populateHeader(hdr); // will populate if a span exists (created by the caller)
         msg.putHeader(OPEN_TELEMETRY_ID, hdr);
@@ -64,19 +267,34 @@ public class OPEN_TELEMETRY extends Protocol {
 
 
     public Object up(Message msg) {
-        if(!active)
-            return up_prot.up(msg);
+        Config cfg=config;
+        if(!cfg.enabled) {
+            Header hdr=msg.getHeader(OPEN_TELEMETRY_ID);
+            return hdr instanceof BurstHeader? handleBurst(msg.src(), (BurstHeader)hdr) : up_prot.up(msg);
+        }
+        byte state_type=stateType(msg);
+        if(state_type != StateTransferTracer.NONE)
+            return upState(msg, state_type);
+        Header h=msg.getHeader(OPEN_TELEMETRY_ID);
+        if(h instanceof BurstHeader)
+            return handleBurst(msg.src(), (BurstHeader)h);
+        if(!sample(cfg, msg)) {
+            if(!(h instanceof TracerHeader) || ((TracerHeader)h).baggage() == null)
+                return up_prot.up(msg);
+            try(Scope ignored=withBaggage(Context.current(), (TracerHeader)h).makeCurrent()) {
+                return up_prot.up(msg); // baggage is propagated even if no span is created
+            }
+        }
 
-        TracerHeader hdr=msg.getHeader(OPEN_TELEMETRY_ID);
-        Context extractedContext=otel.getPropagators().getTextMapPropagator()
-          .extract(Context.current(), hdr, TEXT_MAP_GETTER);
+        TracerHeader hdr=(TracerHeader)h;
+        Context extractedContext=extract(hdr);
 
         Span span=tracer.spanBuilder("deliver-single-msg")
           .setSpanKind(SpanKind.SERVER)
+          .setAllAttributes(tracing(msg).attributes(msg.src()))
           .setParent(extractedContext).startSpan();
 
-        try(Scope ignored=span.makeCurrent()) {
-            span.setAttribute("from", msg.src().toString());
+        try(Scope ignored=extractedContext.with(span).makeCurrent()) {
             return up_prot.up(msg);
         }
         catch(Throwable t) {
@@ -90,25 +308,56 @@ public class OPEN_TELEMETRY extends Protocol {
     }
 
     public void up(MessageBatch batch) {
-        if(!active) {
+        Config cfg=config;
+        if(!cfg.enabled) {
+            for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+                Message msg=it.next();
+                Header h=msg.getHeader(OPEN_TELEMETRY_ID);
+                if(h instanceof BurstHeader) {
+                    it.remove();
+                    handleBurst(msg.src(), (BurstHeader)h);
+                }
+            }
             if(!batch.isEmpty())
                 up_prot.up(batch);
             return;
         }
         List<Span> spans=new ArrayList<>(batch.size());
+        List<Message> state_msgs=null;
         int index=0, batch_size=batch.size();
-        for(Message msg: batch) {
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
             index++;
-            TracerHeader hdr=msg.getHeader(OPEN_TELEMETRY_ID);
-            Context extractedContext=otel.getPropagators().getTextMapPropagator()
-              .extract(Context.current(), hdr, TEXT_MAP_GETTER);
+            byte state_type=stateType(msg);
+            if(state_type != StateTransferTracer.NONE) {
+                if(state_type == StateTransferTracer.REQ)
+                    state_tracer.requestReceived(msg, extract(msg.getHeader(OPEN_TELEMETRY_ID)));
+                else {
+                    if(state_msgs == null)
+                        state_msgs=new ArrayList<>();
+                    state_msgs.add(msg);
+                }
+                continue;
+            }
+            Header h=msg.getHeader(OPEN_TELEMETRY_ID);
+            if(h instanceof BurstHeader) {
+                handleBurst(msg.src(), (BurstHeader)h);
+                it.remove();
+                continue;
+            }
+            if(!sample(cfg, msg))
+                continue;
+            Context extractedContext=extract((TracerHeader)h);
 
             Span span=tracer.spanBuilder("deliver-batched-msg")
               .setSpanKind(SpanKind.SERVER)
+              .setAllAttributes(tracing(msg).attributes(batch.sender()))
               .setParent(extractedContext).startSpan();
             span.setAttribute("batch-msg", String.format("%d/%d", index, batch_size));
+            addBaggage(span, (TracerHeader)h);
             spans.add(span);
         }
+        long start=state_msgs != null? System.nanoTime() : 0;
         try {
             if(!batch.isEmpty())
                 up_prot.up(batch);
@@ -122,12 +371,237 @@ public class OPEN_TELEMETRY extends Protocol {
         }
         finally {
             spans.forEach(Span::end);
+            if(state_msgs != null) { // the time to deliver the batch is split evenly between the state messages
+                long time=(System.nanoTime() - start) / state_msgs.size();
+                for(Message msg: state_msgs)
+                    state_tracer.received(msg, state_tracer.type(msg), time);
+            }
+        }
+    }
+
+    /**
+     * Returns true if a span should be created for a received message: during a diagnostic burst all messages are
+     * traced, otherwise sample_rate and the channel's span quota apply
+     */
+    protected boolean sample(Config cfg, Message msg) {
+        DiagnosticBurst burst=cfg.burst;
+        if(burst != null) {
+            if(burst.tryAcquire()) {
+                burst.record(msg.src(), msg.getLength());
+                return true;
+            }
+            stopBurst(burst);
+            if(!cfg.active)
+                return false;
+        }
+        return (cfg.sample_rate >= 1 || ThreadLocalRandom.current().nextDouble() < cfg.sample_rate)
+          && tracing(msg).tryAcquire();
+    }
+
+    /** Returns the tracing state of the fork channel of a message (if it has a fork header), or of the main channel */
+    protected TracingRuntime.ChannelTracing tracing(Message msg) {
+        Header hdr=msg.getHeader(FORK.ID);
+        if(hdr instanceof FORK.ForkHeader) {
+            FORK.ForkHeader fh=(FORK.ForkHeader)hdr;
+            return channel_tracing.fork(fh.getForkStackId(), fh.getForkChannelId());
         }
+        return channel_tracing;
     }
 
-    protected static void populateHeader(TracerHeader hdr) {
+    /** Starts the burst requested by sender, unless this is a resent request for a burst which was already started */
+    protected synchronized Object handleBurst(Address sender, BurstHeader hdr) {
+        if(Objects.equals(sender, local_addr)) // the initiator already started the burst
+            return null;
+        if(hdr.duration() <= 0 || hdr.maxSpans() < 0) {
+            log.warn("%s: ignoring invalid burst request from %s: %s", local_addr, sender, hdr);
+            return null;
+        }
+        DiagnosticBurst current=config.burst, last=last_burst;
+        if((current != null && current.is(sender, hdr.id())) || (last != null && last.is(sender, hdr.id())))
+            return null;
+        startBurst(sender, hdr.id(), hdr.duration(), hdr.maxSpans());
+        return null;
+    }
+
+    protected void sendBurst(BurstHeader hdr) {
+        Message msg=new EmptyMessage(null).putHeader(OPEN_TELEMETRY_ID, hdr)
+          .setFlag(Message.Flag.OOB, Message.Flag.DONT_BUNDLE);
+        try {
+            down_prot.down(msg);
+        }
+        catch(Throwable t) {
+            log.error("%s: failed sending burst request: %s", local_addr, t);
+        }
+    }
+
+    protected synchronized void startBurst(Address initiator, long id, long duration, long max_spans) {
+        activate(true); // a burst also traces members which are not active
+        DiagnosticBurst burst=new DiagnosticBurst(initiator, id, duration, max_spans);
+        DiagnosticBurst old=updateConfig(c -> c.burst(burst)).burst;
+        if(old != null)
+            last_burst=old.stop();
+        getTransport().getTimer().schedule(() -> stopBurst(burst), duration, TimeUnit.MILLISECONDS);
+        log.info("%s: started diagnostic burst (initiator: %s, duration: %d ms, max spans: %d)",
+                 local_addr, initiator, duration, max_spans);
+    }
+
+    /** Stops the given burst, unless it has already been stopped or replaced by a new burst */
+    protected synchronized void stopBurst(DiagnosticBurst burst) {
+        if(config.burst != burst)
+            return;
+        config=config.burst(null);
+        last_burst=burst.stop();
+        log.info("%s: %s", local_addr, burst.summary());
+    }
+
+    /** Replaces the config and returns the old one */
+    protected synchronized Config updateConfig(UnaryOperator<Config> f) {
+        Config old=config;
+        config=f.apply(old);
+        return old;
+    }
+
+    public Map<String,String> handleProbe(String... keys) {
+        Map<String,String> map=null;
+        for(String key: keys) {
+            if(key.startsWith(PROBE_SUMMARY)) {
+                if(map == null)
+                    map=new HashMap<>(2);
+                map.put(PROBE_SUMMARY, getBurstSummary());
+            }
+            else if(key.startsWith(PROBE_BURST)) {
+                long duration=burst_duration, max_spans=burst_max_spans;
+                int index=key.indexOf('=');
+                if(index >= 0) {
+                    List<String> args=Util.parseCommaDelimitedStrings(key.substring(index + 1));
+                    if(!args.isEmpty())
+                        duration=Long.parseLong(args.get(0));
+                    if(args.size() > 1)
+                        max_spans=Long.parseLong(args.get(1));
+                }
+                startBurst(duration, max_spans);
+                if(map == null)
+                    map=new HashMap<>(2);
+                map.put(PROBE_BURST, String.format("started (duration: %d ms, max spans: %d)", duration, max_spans));
+            }
+        }
+        return map;
+    }
+
+    public String[] supportedKeys() {
+        return new String[]{PROBE_BURST, PROBE_SUMMARY};
+    }
+
+    protected byte stateType(Message msg) {
+        return state_tracer != null? state_tracer.type(msg) : StateTransferTracer.NONE;
+    }
+
+    /** Traces the state request; responses and chunks are only added to the state transfer span */
+    protected Object downState(Message msg, byte state_type) {
+        if(state_type == StateTransferTracer.REQ) {
+            Span span=state_tracer.requestSent(msg);
+            TracerHeader hdr=new TracerHeader();
+            try(Scope ignored=span.makeCurrent()) {
+                populateHeader(hdr);
+            }
+            msg.putHeader(OPEN_TELEMETRY_ID, hdr);
+            return down_prot.down(msg);
+        }
+        long start=System.nanoTime();
+        try {
+            return down_prot.down(msg);
+        }
+        finally {
+            state_tracer.sent(msg, state_type, System.nanoTime() - start);
+        }
+    }
+
+    protected Object upState(Message msg, byte state_type) {
+        if(state_type == StateTransferTracer.REQ) {
+            Context parent=extract(msg.getHeader(OPEN_TELEMETRY_ID));
+            Span span=state_tracer.requestReceived(msg, parent);
+            try(Scope ignored=parent.with(span).makeCurrent()) {
+                return up_prot.up(msg);
+            }
+        }
+        long start=System.nanoTime();
+        try {
+            return up_prot.up(msg);
+        }
+        finally {
+            state_tracer.received(msg, state_type, System.nanoTime() - start);
+        }
+    }
+
+    protected void populateHeader(TracerHeader hdr) {
         // Inject the request with the *current* Context, which contains our current Span.
-        W3CTraceContextPropagator.getInstance().inject(Context.current(), hdr,(carrier, key, val) -> hdr.put(key, val));
+        Context current=Context.current();
+        W3CTraceContextPropagator.getInstance().inject(current, hdr,(carrier, key, val) -> hdr.put(key, val));
+        if(!baggage_whitelist.isEmpty())
+            populateBaggage(current, hdr);
+    }
+
+    /** Adds the whitelisted entries of the current baggage to the header, as long as max_baggage_size is not exceeded */
+    protected void populateBaggage(Context current, TracerHeader hdr) {
+        Baggage baggage=Baggage.fromContextOrNull(current);
+        if(baggage == null || baggage.isEmpty())
+            return;
+        int remaining=max_baggage_size;
+        for(String key: baggage_whitelist.keySet()) {
+            String val=baggage.getEntryValue(key);
+            if(val == null)
+                continue;
+            int size=TracerHeader.size(key, val);
+            if(size > remaining) {
+                num_baggage_dropped.increment();
+                continue;
+            }
+            hdr.putBaggage(key, val);
+            remaining-=size;
+        }
+    }
+
+    /**
+     * Extracts the parent context and baggage (if present) from the header. The header is null e.g. for messages sent
+     * by members which don't trace (not active, or a burst request was missed), or sent before a burst was started
+     */
+    protected Context extract(TracerHeader hdr) {
+        if(hdr == null)
+            return Context.current();
+        Context ctx=otel.getPropagators().getTextMapPropagator().extract(Context.current(), hdr, TEXT_MAP_GETTER);
+        return withBaggage(ctx, hdr);
+    }
+
+    /** Returns the context with the baggage entries of the header added */
+    protected static Context withBaggage(Context ctx, TracerHeader hdr) {
+        Map<String,String> entries=hdr.baggage();
+        if(entries == null || entries.isEmpty())
+            return ctx;
+        BaggageBuilder builder=Baggage.fromContext(ctx).toBuilder();
+        entries.forEach(builder::put);
+        return ctx.with(builder.build());
+    }
+
+    /** Records the whitelisted baggage entries of the header as attributes of the span */
+    protected void addBaggage(Span span, TracerHeader hdr) {
+        Map<String,String> entries=hdr != null? hdr.baggage() : null;
+        if(entries == null)
+            return;
+        for(Map.Entry<String,String> e: entries.entrySet()) {
+            AttributeKey<String> key=baggage_whitelist.get(e.getKey());
+            if(key != null)
+                span.setAttribute(key, e.getValue());
+        }
+    }
+
+    protected static Map<String,AttributeKey<String>> parseBaggageKeys(String keys) {
+        List<String> list=keys == null? null : Util.parseCommaDelimitedStrings(keys);
+        if(list == null || list.isEmpty())
+            return Collections.emptyMap();
+        Map<String,AttributeKey<String>> map=new LinkedHashMap<>(list.size());
+        for(String key: list)
+            map.put(key, AttributeKey.stringKey("baggage." + key));
+        return map;
     }
 
     protected static final TextMapGetter<TracerHeader> TEXT_MAP_GETTER =
@@ -144,11 +618,43 @@ public class OPEN_TELEMETRY extends Protocol {
       };
 
     protected boolean activate(boolean flag) {
-        if(flag && otel == null)
-            otel=GlobalOpenTelemetry.get();
-        if(flag && tracer == null)
-            tracer=otel.getTracer("org.jgroups.trace", Version.printVersion());
+        if(flag && runtime == null) {
+            runtime=TracingRuntime.get();
+            otel=runtime.openTelemetry();
+            tracer=runtime.tracer();
+        }
+        if(flag && channel_tracing == null)
+            registerChannel();
+        if(flag && state_tracer == null && stack != null)
+            state_tracer=StateTransferTracer.create(stack, tracer, runtime.meter());
         return flag;
     }
 
+    protected void registerChannel() {
+        TracingRuntime.ChannelTracing old=channel_tracing;
+        String cluster=stack != null? getTransport().getClusterName() : null;
+        channel_tracing=runtime.register(cluster, local_addr, getName(), max_spans_per_sec);
+        runtime.unregister(old);
+    }
+
+
+    /** Immutable snapshot of the configuration of the protocol */
+    protected static class Config {
+        protected final boolean         active;      // configured via the active property
+        protected final boolean         enabled;     // active, or a burst is running
+        protected final double          sample_rate;
+        protected final DiagnosticBurst burst;       // null if no burst is running
+
+        protected Config(boolean active, double sample_rate, DiagnosticBurst burst) {
+            this.active=active;
+            this.enabled=active || burst != null;
+            this.sample_rate=sample_rate;
+            this.burst=burst;
+        }
+
+        protected Config active(boolean a)        {return new Config(a, sample_rate, burst);}
+        protected Config sampleRate(double r)     {return new Config(active, r, burst);}
+        protected Config burst(DiagnosticBurst b) {return new Config(active, sample_rate, b);}
+    }
+
 }
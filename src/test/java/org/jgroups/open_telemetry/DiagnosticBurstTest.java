@@ -0,0 +1,67 @@
+package org.jgroups.open_telemetry;
+
+import org.jgroups.Address;
+import org.jgroups.util.Util;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link DiagnosticBurst}
+ */
+public class DiagnosticBurstTest {
+    protected final Address A=Util.createRandomAddress("A"), B=Util.createRandomAddress("B"),
+      C=Util.createRandomAddress("C");
+
+    @Test
+    public void testExpiry() throws Exception {
+        DiagnosticBurst burst=new DiagnosticBurst(A, 1, 50, 0);
+        assertTrue(burst.tryAcquire());
+        Thread.sleep(60);
+        assertFalse(burst.tryAcquire());
+        assertEquals(1, burst.spans());
+    }
+
+    @Test
+    public void testMaxSpans() {
+        DiagnosticBurst burst=new DiagnosticBurst(A, 1, 60_000, 3);
+        for(int i=0; i < 3; i++)
+            assertTrue(burst.tryAcquire());
+        assertFalse(burst.tryAcquire());
+        assertFalse(burst.tryAcquire());
+        assertEquals(3, burst.spans()); // failed attempts are not counted
+
+        burst=new DiagnosticBurst(A, 1, 60_000, 0); // unlimited
+        for(int i=0; i < 1000; i++)
+            assertTrue(burst.tryAcquire());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidDuration() {
+        new DiagnosticBurst(A, 1, 0, 0);
+    }
+
+    @Test
+    public void testIdentity() {
+        DiagnosticBurst burst=new DiagnosticBurst(A, 42, 1000, 0);
+        assertTrue(burst.is(A, 42));
+        assertFalse(burst.is(A, 43));
+        assertFalse(burst.is(B, 42));
+    }
+
+    @Test
+    public void testSummary() {
+        DiagnosticBurst burst=new DiagnosticBurst(A, 1, 60_000, 10);
+        for(Address sender: new Address[]{B, C, C, C, B, A}) {
+            assertTrue(burst.tryAcquire());
+            burst.record(sender, 1000);
+        }
+        burst.stop();
+        String summary=burst.summary();
+        assertTrue(summary, summary.startsWith("burst started by A"));
+        assertTrue(summary, summary.contains("max_spans=10"));
+        assertTrue(summary, summary.contains(" 6 spans"));
+        assertTrue(summary, summary.contains("top senders: [C: 3, B: 2, A: 1]"));
+        assertEquals(summary, burst.summary()); // stopped: elapsed time doesn't change anymore
+    }
+}
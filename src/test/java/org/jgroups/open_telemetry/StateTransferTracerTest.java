@@ -0,0 +1,272 @@
+package org.jgroups.open_telemetry;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import org.jgroups.Address;
+import org.jgroups.BytesMessage;
+import org.jgroups.Header;
+import org.jgroups.Message;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.UnicastHeader3;
+import org.jgroups.protocols.pbcast.STATE;
+import org.jgroups.protocols.pbcast.STATE_SOCK;
+import org.jgroups.protocols.pbcast.STATE_TRANSFER;
+import org.jgroups.protocols.pbcast.StreamingStateTransfer;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.jgroups.open_telemetry.StateTransferTracer.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link StateTransferTracer}
+ */
+public class StateTransferTracerTest {
+    protected static final Address       A=Util.createRandomAddress("A"), B=Util.createRandomAddress("B");
+    protected static final short         UNICAST_ID=new UNICAST3().getId(), STATE_ID=new STATE().getId(),
+                                         STATE_TRANSFER_ID=new STATE_TRANSFER().getId();
+    protected final InMemorySpanExporter exporter=InMemorySpanExporter.create();
+    protected SdkTracerProvider          provider;
+    protected Tracer                     tracer;
+    protected final Meter                meter=OpenTelemetry.noop().getMeter("test");
+
+    @Before
+    public void setup() {
+        provider=SdkTracerProvider.builder().addSpanProcessor(SimpleSpanProcessor.create(exporter)).build();
+        tracer=provider.get("test");
+    }
+
+    @After
+    public void destroy() {
+        provider.close();
+    }
+
+    @Test
+    public void testType() {
+        StateTransferTracer st=create(new STATE(), false);
+        for(byte type: new byte[]{REQ, RSP, PART, EOF, EX})
+            assertEquals(type, st.type(msg(A, B, new StreamingStateTransfer.StateHeader(type))));
+        assertEquals(NONE, st.type(new BytesMessage(B)));
+
+        st=create(new STATE_TRANSFER(), false);
+        assertEquals(REQ, st.type(msg(A, B, new STATE_TRANSFER.StateHeader(STATE_TRANSFER.StateHeader.STATE_REQ))));
+        assertEquals(RSP, st.type(msg(A, B, new STATE_TRANSFER.StateHeader(STATE_TRANSFER.StateHeader.STATE_RSP))));
+        assertEquals(EX, st.type(msg(A, B, new STATE_TRANSFER.StateHeader(STATE_TRANSFER.StateHeader.STATE_EX))));
+    }
+
+    @Test
+    public void testHasStateAndCompletes() {
+        StateTransferTracer state=create(new STATE(), false), state_sock=create(new STATE_SOCK(), false),
+          state_transfer=create(new STATE_TRANSFER(), false);
+
+        // STATE: the state is sent in PART messages, terminated by EOF
+        assertTrue(state.hasState(PART));
+        assertFalse(state.hasState(RSP));
+        assertFalse(state.completes(RSP));
+        assertTrue(state.completes(EOF));
+        assertTrue(state.completes(EX));
+
+        // STATE_SOCK: the state is sent over a socket, the response ends the transfer
+        assertFalse(state_sock.hasState(RSP));
+        assertTrue(state_sock.completes(RSP));
+
+        // STATE_TRANSFER: the state is sent in the response
+        assertTrue(state_transfer.hasState(RSP));
+        assertTrue(state_transfer.completes(RSP));
+        assertTrue(state_transfer.completes(EX));
+        assertFalse(state_transfer.completes(REQ));
+    }
+
+    /** A (requester) gets the state from B (provider) via STATE */
+    @Test
+    public void testStreamingTransfer() throws Exception {
+        StateTransferTracer st=create(new STATE(), false);
+        Span span=st.requestSent(msg(B, A, hdr(REQ)));
+        assertTrue(span.getSpanContext().isValid());
+        st.received(msg(A, B, hdr(RSP)), RSP, 0);
+        st.received(msg(A, B, hdr(PART), 1000), PART, ms(5));
+        Thread.sleep(50);
+        st.received(msg(A, B, hdr(PART), 500), PART, ms(5));
+        assertTrue(exporter.getFinishedSpanItems().isEmpty());
+        st.received(msg(A, B, hdr(EOF)), EOF, ms(3));
+
+        SpanData data=single();
+        assertEquals("state-transfer-requester", data.getName());
+        assertEquals(StatusCode.UNSET, data.getStatus().getStatusCode());
+        assertEquals(1500, attr(data, "state.bytes"));
+        assertEquals(2, attr(data, "state.chunks"));
+        assertEquals(13, attr(data, "state.apply_time_ms"));
+        assertTrue(attr(data, "state.stall_time_ms") >= 40); // 50 ms between the chunks, minus 5 ms apply time
+        assertTrue(st.requests.isEmpty());
+    }
+
+    /** B provides the state to A via STATE_TRANSFER; the provider span is a child of the requester span */
+    @Test
+    public void testProvider() {
+        StateTransferTracer st=create(new STATE_TRANSFER(), false);
+        Span parent=tracer.spanBuilder("parent").startSpan();
+        Span span=st.requestReceived(msg(B, A, hdr(REQ)), Context.root().with(parent));
+        assertEquals(parent.getSpanContext().getTraceId(), span.getSpanContext().getTraceId());
+        st.sent(msg(A, B, new STATE_TRANSFER.StateHeader(STATE_TRANSFER.StateHeader.STATE_RSP), 2000), RSP, ms(1));
+
+        SpanData data=single();
+        assertEquals("state-transfer-provider", data.getName());
+        assertEquals(parent.getSpanContext().getSpanId(), data.getParentSpanId());
+        assertEquals(2000, attr(data, "state.bytes"));
+        assertEquals(1, attr(data, "state.chunks"));
+        assertEquals(0, attr(data, "state.apply_time_ms")); // sending is not applying
+        assertTrue(st.provides.isEmpty());
+    }
+
+    /** Retransmitted requests must not start new spans, or end the ongoing one */
+    @Test
+    public void testDuplicateRequest() {
+        StateTransferTracer st=create(new STATE(), true);
+        Message req=seqno(msg(B, A, hdr(REQ)), 5);
+        Span span=st.requestSent(req);
+        assertSame(span, st.requestSent(req));
+        assertEquals(1, st.requests.size());
+        assertTrue(exporter.getFinishedSpanItems().isEmpty());
+
+        st.received(seqno(msg(A, B, hdr(RSP)), 1), RSP, 0);
+        st.received(seqno(msg(A, B, hdr(EOF)), 2), EOF, 0);
+        assertEquals(1, exporter.getFinishedSpanItems().size());
+
+        // a late duplicate of the request of the completed transfer
+        assertFalse(st.requestSent(req).getSpanContext().isValid());
+        assertTrue(st.requests.isEmpty());
+
+        // a new request starts a new transfer
+        assertTrue(st.requestSent(seqno(msg(B, A, hdr(REQ)), 6)).getSpanContext().isValid());
+        assertEquals(1, st.requests.size());
+    }
+
+    /** Duplicate (retransmitted) chunks must not be counted */
+    @Test
+    public void testDuplicateChunks() {
+        StateTransferTracer st=create(new STATE(), true);
+        st.requestSent(seqno(msg(B, A, hdr(REQ)), 1));
+        st.received(seqno(msg(A, B, hdr(RSP)), 10), RSP, 0);
+        for(long seqno: new long[]{11, 12, 12, 14, 13, 14, 11, 15})
+            st.received(seqno(msg(A, B, hdr(PART), 100), seqno), PART, 0);
+        st.received(seqno(msg(A, B, hdr(EOF)), 16), EOF, 0);
+
+        SpanData data=single();
+        assertEquals(5, attr(data, "state.chunks"));
+        assertEquals(500, attr(data, "state.bytes"));
+    }
+
+    /**
+     * Seqnos of chunks are interleaved with those of other unicasts, so there are gaps which are never filled; the
+     * seqnos tracked to detect duplicates must not grow with the number of chunks
+     */
+    @Test
+    public void testChunksInterleavedWithOtherMessages() {
+        StateTransferTracer st=create(new STATE(), true);
+        st.requestSent(seqno(msg(B, A, hdr(REQ)), 1));
+        st.received(seqno(msg(A, B, hdr(RSP)), 1), RSP, 0);
+        int num_chunks=SEQNO_WINDOW * 5;
+        long seqno=1;
+        for(int i=0; i < num_chunks; i++) {
+            seqno+=2; // every other seqno is used by a different message
+            st.received(seqno(msg(A, B, hdr(PART), 10), seqno), PART, 0);
+            if(i % 10 == 9) // retransmission of a recent chunk
+                st.received(seqno(msg(A, B, hdr(PART), 10), seqno - 4), PART, 0);
+        }
+        StateTransferTracer.Transfer t=st.requests.get(B);
+        assertTrue(t.above.size() <= SEQNO_WINDOW);
+        assertTrue(t.low >= seqno - SEQNO_WINDOW * 3);
+        st.received(seqno(msg(A, B, hdr(PART), 10), seqno - SEQNO_WINDOW * 3), PART, 0); // too old: a duplicate
+        st.received(seqno(msg(A, B, hdr(EOF)), seqno + 1), EOF, 0);
+
+        SpanData data=single();
+        assertEquals(num_chunks, attr(data, "state.chunks"));
+        assertEquals(num_chunks * 10, attr(data, "state.bytes"));
+    }
+
+    /** Without UNICAST3, duplicates cannot be detected and are counted */
+    @Test
+    public void testChunksWithoutUnicast() {
+        StateTransferTracer st=create(new STATE(), false);
+        st.requestSent(msg(B, A, hdr(REQ)));
+        for(long seqno: new long[]{11, 11})
+            st.received(seqno(msg(A, B, hdr(PART), 100), seqno), PART, 0);
+        st.received(msg(A, B, hdr(EOF)), EOF, 0);
+        assertEquals(2, attr(single(), "state.chunks"));
+    }
+
+    @Test
+    public void testException() {
+        StateTransferTracer st=create(new STATE(), false);
+        st.requestSent(msg(B, A, hdr(REQ)));
+        st.received(msg(A, B, hdr(EX)), EX, 0);
+        assertEquals(StatusCode.ERROR, single().getStatus().getStatusCode());
+    }
+
+    @Test
+    public void testClear() {
+        StateTransferTracer st=create(new STATE(), true);
+        st.requestSent(seqno(msg(B, A, hdr(REQ)), 1));
+        st.requestReceived(seqno(msg(A, B, hdr(REQ)), 1), Context.root());
+        st.clear();
+        List<SpanData> spans=exporter.getFinishedSpanItems();
+        assertEquals(2, spans.size());
+        spans.forEach(s -> assertEquals(StatusCode.ERROR, s.getStatus().getStatusCode()));
+        assertTrue(st.requests.isEmpty() && st.provides.isEmpty());
+
+        // the same request seqnos after a restart start new transfers
+        assertTrue(st.requestSent(seqno(msg(B, A, hdr(REQ)), 1)).getSpanContext().isValid());
+    }
+
+    protected StateTransferTracer create(Protocol prot, boolean unicast) {
+        return new StateTransferTracer(prot, unicast? UNICAST_ID : 0, tracer, meter);
+    }
+
+    protected SpanData single() {
+        List<SpanData> spans=exporter.getFinishedSpanItems();
+        assertEquals(1, spans.size());
+        return spans.get(0);
+    }
+
+    protected static long attr(SpanData data, String key) {
+        Long val=data.getAttributes().get(AttributeKey.longKey(key));
+        assertNotNull(key, val);
+        return val;
+    }
+
+    protected static Header hdr(byte type) {
+        return new StreamingStateTransfer.StateHeader(type);
+    }
+
+    protected static Message msg(Address dest, Address src, Header hdr) {
+        return msg(dest, src, hdr, 0);
+    }
+
+    protected static Message msg(Address dest, Address src, Header hdr, int length) {
+        short id=hdr instanceof STATE_TRANSFER.StateHeader? STATE_TRANSFER_ID : STATE_ID;
+        return new BytesMessage(dest, new byte[length]).setSrc(src).putHeader(id, hdr);
+    }
+
+    protected static Message seqno(Message msg, long seqno) {
+        return msg.putHeader(UNICAST_ID, UnicastHeader3.createDataHeader(seqno, (short)0, false));
+    }
+
+    protected static long ms(long ms) {
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+}
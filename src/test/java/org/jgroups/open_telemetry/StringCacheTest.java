@@ -0,0 +1,57 @@
+package org.jgroups.open_telemetry;
+
+import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.Util;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link StringCache}
+ */
+public class StringCacheTest {
+
+    @Test
+    public void testRead() throws Exception {
+        StringCache cache=new StringCache(2);
+        String s1=read(cache, "tenant", true), s2=read(cache, "tenant", true);
+        assertEquals("tenant", s1);
+        assertSame(s1, s2);
+        assertSame(s1, cache.add("tenant"));
+        assertEquals(1, cache.size());
+
+        assertNotSame(read(cache, "bulk", false), read(cache, "bulk", false)); // not added
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testBound() throws Exception {
+        StringCache cache=new StringCache(3);
+        for(int i=0; i < 10; i++)
+            read(cache, "val-" + i, true);
+        assertEquals(3, cache.size());
+        assertSame(read(cache, "val-0", true), read(cache, "val-0", true));
+        assertNotSame(read(cache, "val-9", true), read(cache, "val-9", true));
+    }
+
+    @Test
+    public void testNonAsciiAndLongStrings() throws Exception {
+        StringCache cache=new StringCache(4);
+        assertEquals("grüezi", read(cache, "grüezi", true));
+        String long_str="x".repeat(StringCache.MAX_LENGTH + 1);
+        assertEquals(long_str, read(cache, long_str, true));
+        assertEquals(0, cache.size());
+        assertEquals("grüezi", read(null, "grüezi", false));
+        assertEquals("tenant", read(null, "tenant", false));
+    }
+
+    protected static String read(StringCache cache, String s, boolean add) throws Exception {
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(64);
+        Util.writeString(s, out);
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(out.buffer(), 0, out.position());
+        String retval=cache != null? cache.read(in, add) : StringCache.read(in);
+        assertEquals(out.position(), in.position());
+        return retval;
+    }
+}
@@ -0,0 +1,143 @@
+package org.jgroups.open_telemetry;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.sdk.testing.trace.TestSpanData;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.data.StatusData;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link TraceAnalyzer}
+ */
+public class TraceAnalyzerTest {
+    protected static final String TRACE_ID="0af7651916cd43dd8448eb211c80319c";
+
+    /**
+     * A sends a request to B (0-100), B processes it in two sequential steps (10-40 and 40-90); of a concurrent
+     * step on A (5-20), only 5-10 is on the critical path
+     */
+    @Test
+    public void testCriticalPath() {
+        SpanData send=span("0000000000000001", null, "send", "A", 0, 100),
+          side=span("0000000000000002", "0000000000000001", "side", "A", 5, 20),
+          deliver=span("0000000000000003", "0000000000000001", "deliver", "B", 10, 90),
+          step1=span("0000000000000004", "0000000000000003", "step1", "B", 10, 40),
+          step2=span("0000000000000005", "0000000000000003", "step2", "B", 40, 90);
+
+        // spans are exported in the order in which they ended
+        TraceAnalyzer analyzer=new TraceAnalyzer(2, 10).analyze(Stream.of(side, step1, step2, deliver, send));
+        assertEquals(1, analyzer.numTraces());
+        assertEquals(0, analyzer.numIncompleteTraces());
+
+        List<TraceAnalyzer.Hotspot> top=analyzer.top(10);
+        assertEquals("step2", top.get(0).name);
+        assertEquals("B", top.get(0).node);
+        assertEquals(50, top.get(0).critical_path_time);
+        assertEquals(30, find(top, "step1").critical_path_time);
+        assertEquals(15, find(top, "send").critical_path_time); // 0-5 and 90-100
+        assertEquals(5, find(top, "side").critical_path_time);
+        assertEquals(0, find(top, "deliver").critical_path_time);
+        assertEquals(100, top.stream().mapToLong(h -> h.critical_path_time).sum());
+        assertEquals(15, find(top, "send").self_time); // not covered by side or deliver
+    }
+
+    /**
+     * A sends a message to B; the send span on A (0-10) ends before B delivers the message (15-40, with processing
+     * from 20-35). The deliver span is exported after the root span and must still be part of the same trace
+     */
+    @Test
+    public void testRootEndsBeforeRemoteChild() {
+        SpanData send=span("0000000000000001", null, "send", "A", 0, 10),
+          deliver=span("0000000000000002", "0000000000000001", "deliver", "B", 15, 40),
+          process=span("0000000000000003", "0000000000000002", "process", "B", 20, 35);
+
+        TraceAnalyzer analyzer=new TraceAnalyzer(2, 10).analyze(Stream.of(send, process, deliver));
+        assertEquals(1, analyzer.numTraces());
+        assertEquals(0, analyzer.numIncompleteTraces());
+
+        List<TraceAnalyzer.Hotspot> top=analyzer.top(10);
+        assertEquals(15, find(top, "process").critical_path_time);
+        assertEquals(10, find(top, "deliver").critical_path_time); // 15-20 and 35-40
+        assertEquals(10, find(top, "send").critical_path_time);
+        // 10-15 (between the end of send and the start of deliver) is not attributed to any span
+        assertEquals(35, top.stream().mapToLong(h -> h.critical_path_time).sum());
+    }
+
+    /** A trace is analyzed once the watermark has moved past the end of its spans by more than idle_time */
+    @Test
+    public void testIdleTraceIsCompleted() {
+        TraceAnalyzer analyzer=new TraceAnalyzer(1, 10, Runnable::run, 10).idleTime(100, TimeUnit.NANOSECONDS);
+        analyzer.add(span("0000000000000001", null, "send", "A", 0, 10));
+        analyzer.add(span("0000000000000002", "0000000000000001", "deliver", "B", 15, 40));
+        assertEquals(0, analyzer.numTraces());
+
+        String other_trace="1af7651916cd43dd8448eb211c80319c";
+        analyzer.add(span(other_trace, "0000000000000003", null, "send", "A", 100, 130));
+        assertEquals(0, analyzer.numTraces()); // 40 is not yet more than 100ns behind the watermark (130)
+        analyzer.add(span(other_trace, "0000000000000004", "0000000000000003", "deliver", "B", 110, 150));
+        assertEquals(1, analyzer.numTraces());
+        assertEquals(0, analyzer.numIncompleteTraces());
+
+        analyzer.finish();
+        assertEquals(2, analyzer.numTraces());
+    }
+
+    /** The layer is the protocol which created a span, or the instrumentation scope for other (e.g. app) spans */
+    @Test
+    public void testLayer() {
+        SpanData app=span(TRACE_ID, "0000000000000001", null, "app", Attributes.of(TraceAnalyzer.NODE, "A"), 0, 100),
+          deliver=span(TRACE_ID, "0000000000000002", "0000000000000001", "deliver-single-msg",
+                       Attributes.of(TraceAnalyzer.NODE, "B", TracingRuntime.PROTOCOL, "OPEN_TELEMETRY"), 10, 40),
+          state=span(TRACE_ID, "0000000000000003", "0000000000000001", "state-transfer-provider",
+                     Attributes.of(TraceAnalyzer.NODE, "B", TracingRuntime.PROTOCOL, "STATE"), 40, 90);
+        List<TraceAnalyzer.Hotspot> top=new TraceAnalyzer(1, 10).analyze(Stream.of(deliver, state, app)).top(10);
+        assertEquals("OPEN_TELEMETRY", find(top, "deliver-single-msg").layer);
+        assertEquals("STATE", find(top, "state-transfer-provider").layer);
+        assertEquals(app.getInstrumentationScopeInfo().getName(), find(top, "app").layer);
+    }
+
+    @Test
+    public void testTraceWithoutRoot() {
+        SpanData deliver=span("0000000000000003", "0000000000000001", "deliver", "B", 10, 90);
+        TraceAnalyzer analyzer=new TraceAnalyzer(1, 10).analyze(Stream.of(deliver));
+        assertEquals(1, analyzer.numIncompleteTraces());
+        assertEquals(80, find(analyzer.top(1), "deliver").critical_path_time);
+    }
+
+    protected static TraceAnalyzer.Hotspot find(List<TraceAnalyzer.Hotspot> list, String name) {
+        return list.stream().filter(h -> h.name.equals(name)).findFirst().orElseThrow();
+    }
+
+    protected static SpanData span(String id, String parent, String name, String node, long start, long end) {
+        return span(TRACE_ID, id, parent, name, node, start, end);
+    }
+
+    protected static SpanData span(String trace_id, String id, String parent, String name, String node,
+                                   long start, long end) {
+        return span(trace_id, id, parent, name, Attributes.of(TraceAnalyzer.NODE, node), start, end);
+    }
+
+    protected static SpanData span(String trace_id, String id, String parent, String name, Attributes attrs,
+                                   long start, long end) {
+        SpanContext parent_ctx=parent == null? SpanContext.getInvalid()
+          : SpanContext.create(trace_id, parent, TraceFlags.getSampled(), TraceState.getDefault());
+        return TestSpanData.builder()
+          .setSpanContext(SpanContext.create(trace_id, id, TraceFlags.getSampled(), TraceState.getDefault()))
+          .setParentSpanContext(parent_ctx)
+          .setName(name).setKind(SpanKind.INTERNAL)
+          .setAttributes(attrs)
+          .setStartEpochNanos(start).setEndEpochNanos(end).setHasEnded(true)
+          .setStatus(StatusData.unset())
+          .build();
+    }
+}
@@ -0,0 +1,98 @@
+package org.jgroups.open_telemetry;
+
+import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.Util;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests marshalling of {@link TracerHeader}
+ */
+public class TracerHeaderTest {
+
+    @Test
+    public void testMarshallingWithoutBaggage() throws Exception {
+        TracerHeader hdr=new TracerHeader();
+        hdr.put("traceparent", "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+        TracerHeader hdr2=marshalAndUnmarshal(hdr);
+        assertEquals(hdr.get("traceparent"), hdr2.get("traceparent"));
+        assertNull(hdr2.baggage());
+    }
+
+    @Test
+    public void testMarshallingWithBaggage() throws Exception {
+        TracerHeader hdr=new TracerHeader();
+        hdr.put("traceparent", "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+        hdr.putBaggage("tenant", "acme");
+        hdr.putBaggage("request-class", "bulk");
+        TracerHeader.internBaggageKeys(List.of("tenant"));
+        TracerHeader hdr2=marshalAndUnmarshal(hdr), hdr3=marshalAndUnmarshal(hdr);
+        assertEquals(hdr.baggage(), hdr2.baggage());
+        // keys and values of registered keys are interned on reception, others are not
+        assertSame(hdr2.baggage().get("tenant"), hdr3.baggage().get("tenant"));
+        assertSame(find(hdr2.baggage(), "tenant"), find(hdr3.baggage(), "tenant"));
+        assertNotSame(hdr2.baggage().get("request-class"), hdr3.baggage().get("request-class"));
+        assertNotSame(find(hdr2.baggage(), "request-class"), find(hdr3.baggage(), "request-class"));
+    }
+
+    /** A key with many values must not use up the cache of the other keys */
+    @Test
+    public void testInternedValuesPerKey() throws Exception {
+        TracerHeader.internBaggageKeys(List.of("tenant", "request-id"));
+        for(int i=0; i < TracerHeader.MAX_VALUES_PER_KEY * 2; i++) {
+            TracerHeader hdr=new TracerHeader();
+            hdr.putBaggage("request-id", "req-" + i);
+            marshalAndUnmarshal(hdr);
+        }
+        assertEquals(TracerHeader.MAX_VALUES_PER_KEY, TracerHeader.BAGGAGE_VALUES.get("request-id").size());
+
+        TracerHeader hdr=new TracerHeader();
+        hdr.putBaggage("tenant", "initech");
+        hdr.putBaggage("request-id", "req-new");
+        TracerHeader hdr2=marshalAndUnmarshal(hdr), hdr3=marshalAndUnmarshal(hdr);
+        assertSame(hdr2.baggage().get("tenant"), hdr3.baggage().get("tenant"));
+        assertEquals("req-new", hdr3.baggage().get("request-id"));
+        assertNotSame(hdr2.baggage().get("request-id"), hdr3.baggage().get("request-id"));
+    }
+
+    /** A header without baggage must have the wire format of headers written before baggage support was added */
+    @Test
+    public void testWireFormatWithoutBaggage() throws Exception {
+        String traceparent="00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01";
+        ByteArrayDataOutputStream old=new ByteArrayDataOutputStream(128);
+        old.writeInt(1);
+        Util.writeString("traceparent", old);
+        Util.writeString(traceparent, old);
+
+        TracerHeader hdr=new TracerHeader();
+        hdr.put("traceparent", traceparent);
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(128);
+        hdr.writeTo(out);
+        assertArrayEquals(Arrays.copyOf(old.buffer(), old.position()), Arrays.copyOf(out.buffer(), out.position()));
+
+        TracerHeader hdr2=new TracerHeader();
+        hdr2.readFrom(new ByteArrayDataInputStream(old.buffer(), 0, old.position()));
+        assertEquals(traceparent, hdr2.get("traceparent"));
+        assertNull(hdr2.baggage());
+    }
+
+    /** Returns the key instance of the map */
+    protected static String find(Map<String,String> map, String key) {
+        return map.keySet().stream().filter(key::equals).findFirst().orElse(null);
+    }
+
+    protected static TracerHeader marshalAndUnmarshal(TracerHeader hdr) throws Exception {
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(hdr.serializedSize());
+        hdr.writeTo(out);
+        assertEquals(hdr.serializedSize(), out.position());
+        TracerHeader hdr2=new TracerHeader();
+        hdr2.readFrom(new ByteArrayDataInputStream(out.buffer(), 0, out.position()));
+        return hdr2;
+    }
+}
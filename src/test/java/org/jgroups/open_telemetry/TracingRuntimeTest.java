@@ -0,0 +1,99 @@
+package org.jgroups.open_telemetry;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.Attributes;
+import org.jgroups.Address;
+import org.jgroups.util.Util;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.jgroups.open_telemetry.TracingRuntime.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link TracingRuntime}
+ */
+public class TracingRuntimeTest {
+    protected final TracingRuntime runtime=new TracingRuntime(OpenTelemetry.noop());
+    protected final Address        A=Util.createRandomAddress("A");
+
+    @Test
+    public void testRegister() {
+        ChannelTracing ch=runtime.register("demo", A, "OPEN_TELEMETRY", 0);
+        assertEquals("demo", ch.attributes().get(CLUSTER));
+        assertEquals("A", ch.attributes().get(NODE));
+        assertEquals("OPEN_TELEMETRY", ch.attributes().get(PROTOCOL));
+        assertEquals(1, runtime.channels().size());
+        runtime.unregister(ch);
+        assertTrue(runtime.channels().isEmpty());
+    }
+
+    @Test
+    public void testQuotaWindow() {
+        ChannelTracing ch=runtime.register("demo", A, "OPEN_TELEMETRY", 5);
+        for(int i=0; i < 5; i++)
+            assertTrue(ch.tryAcquire());
+        assertFalse(ch.tryAcquire());
+        assertFalse(ch.tryAcquire());
+        assertEquals(2, ch.numDropped());
+
+        // the next window starts one second after the start of the current one
+        ch.window_start.addAndGet(-TimeUnit.SECONDS.toNanos(1));
+        assertTrue(ch.tryAcquire());
+        assertEquals(2, ch.numDropped());
+
+        ch.resetStats();
+        assertEquals(0, ch.numDropped());
+
+        ch.maxSpansPerSec(0); // unlimited
+        for(int i=0; i < 100; i++)
+            assertTrue(ch.tryAcquire());
+        assertEquals(0, ch.numDropped());
+    }
+
+    @Test
+    public void testPeerCacheBound() {
+        ChannelTracing ch=runtime.register("demo", A, "OPEN_TELEMETRY", 0);
+        assertSame(ch.attributes(), ch.attributes(null));
+        for(int i=0; i < MAX_PEERS + 10; i++) {
+            Address peer=Util.createRandomAddress("P" + i);
+            Attributes attrs=ch.attributes(peer);
+            assertEquals(peer.toString(), attrs.get(FROM)); // correct, even if not cached
+            assertEquals("demo", attrs.get(CLUSTER));
+        }
+        assertEquals(MAX_PEERS, ch.peers.size());
+        ch.clearPeers();
+        assertTrue(ch.peers.isEmpty());
+    }
+
+    @Test
+    public void testForkChannels() {
+        ChannelTracing ch=runtime.register("demo", A, "OPEN_TELEMETRY", 1);
+        ChannelTracing f1=ch.fork("stack", "fc1"), f2=ch.fork("stack", "fc2");
+        assertSame(f1, ch.fork("stack", "fc1"));
+        assertNotSame(f1, f2);
+        assertSame(ch, ch.fork(null, "fc1"));
+        assertEquals("fc1", f1.attributes().get(FORK_CHANNEL));
+        assertEquals("stack", f1.attributes().get(FORK_STACK));
+        assertEquals("demo", f1.attributes().get(CLUSTER));
+
+        // each (fork) channel has its own quota
+        assertTrue(ch.tryAcquire());
+        assertTrue(f1.tryAcquire());
+        assertTrue(f2.tryAcquire());
+        assertFalse(f1.tryAcquire());
+        assertEquals(1, f1.numDropped());
+        assertEquals(1, ch.numDropped()); // includes the fork channels
+
+        ch.maxSpansPerSec(10);
+        assertEquals(10, f1.maxSpansPerSec());
+        ch.resetStats();
+        assertEquals(0, f1.numDropped());
+
+        for(int i=0; i < MAX_FORKS + 10; i++)
+            ch.fork("stack", "fc-" + i);
+        assertEquals(MAX_FORKS, ch.numForks());
+        assertSame(ch, ch.fork("stack", "one-too-many"));
+    }
+}
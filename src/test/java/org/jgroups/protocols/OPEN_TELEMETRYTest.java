@@ -0,0 +1,289 @@
+package org.jgroups.protocols;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.baggage.Baggage;
+import io.opentelemetry.api.baggage.propagation.W3CBaggagePropagator;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.context.propagation.TextMapPropagator;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import org.jgroups.Address;
+import org.jgroups.EmptyMessage;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.open_telemetry.BurstHeader;
+import org.jgroups.open_telemetry.DiagnosticBurst;
+import org.jgroups.open_telemetry.TracerHeader;
+import org.jgroups.open_telemetry.TracingRuntime;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link OPEN_TELEMETRY}
+ */
+public class OPEN_TELEMETRYTest {
+
+    @BeforeClass
+    public static void init() {
+        TracingRuntime.init(OpenTelemetry.noop());
+    }
+
+    @Test
+    public void testBaggageWhitelist() {
+        OPEN_TELEMETRY prot=new OPEN_TELEMETRY().baggageKeys("tenant,request-class");
+        TracerHeader hdr=new TracerHeader();
+        prot.populateBaggage(baggage().storeInContext(Context.root()), hdr);
+        Map<String,String> entries=hdr.baggage();
+        assertEquals(2, entries.size());
+        assertEquals("acme", entries.get("tenant"));
+        assertEquals("bulk", entries.get("request-class"));
+        assertFalse(entries.containsKey("user")); // not whitelisted
+        assertEquals(0, prot.getNumBaggageDropped());
+    }
+
+    @Test
+    public void testBaggageBudget() {
+        int tenant_size=TracerHeader.size("tenant", "acme");
+        OPEN_TELEMETRY prot=new OPEN_TELEMETRY().baggageKeys("tenant,request-class").maxBaggageSize(tenant_size);
+        TracerHeader hdr=new TracerHeader();
+        prot.populateBaggage(baggage().storeInContext(Context.root()), hdr);
+        assertEquals(Map.of("tenant", "acme"), hdr.baggage()); // request-class exceeds the budget
+        assertEquals(1, prot.getNumBaggageDropped());
+        prot.resetStats();
+        assertEquals(0, prot.getNumBaggageDropped());
+    }
+
+    @Test
+    public void testNoBaggage() {
+        OPEN_TELEMETRY prot=new OPEN_TELEMETRY().baggageKeys("tenant");
+        TracerHeader hdr=new TracerHeader();
+        prot.populateBaggage(Context.root(), hdr);
+        assertNull(hdr.baggage());
+    }
+
+    @Test
+    public void testConfig() {
+        OPEN_TELEMETRY.Config cfg=new OPEN_TELEMETRY.Config(false, 0.5, null);
+        assertFalse(cfg.enabled);
+        DiagnosticBurst burst=new DiagnosticBurst(null, 1, 1000, 0);
+        OPEN_TELEMETRY.Config with_burst=cfg.burst(burst);
+        assertTrue(with_burst.enabled); // a burst enables tracing on inactive members
+        assertFalse(with_burst.active);
+        assertSame(burst, with_burst.sampleRate(0.1).burst);
+        assertEquals(0.1, with_burst.sampleRate(0.1).sample_rate, 0);
+        assertFalse(with_burst.burst(null).enabled);
+        assertTrue(with_burst.burst(null).active(true).enabled);
+        assertEquals(0.5, cfg.active(true).sample_rate, 0);
+        assertFalse(cfg.enabled); // configs are never modified
+    }
+
+    @Test
+    public void testConfigSwitching() throws Exception {
+        OPEN_TELEMETRY prot=new OPEN_TELEMETRY().active(false);
+        try(JChannel ignored=new JChannel(new SHARED_LOOPBACK(), prot)) {
+            assertFalse(prot.config.enabled);
+            prot.startBurst(60_000, 0);
+            assertTrue(prot.isBurstActive());
+            assertTrue(prot.config.enabled);
+            assertFalse(prot.config.active);
+
+            DiagnosticBurst burst=prot.config.burst;
+            prot.sampleRate(0.5);
+            assertSame(burst, prot.config.burst);
+            assertEquals(0.5, prot.config.sample_rate, 0);
+
+            prot.stopBurst();
+            assertFalse(prot.isBurstActive());
+            assertFalse(prot.config.enabled);
+            assertSame(burst, prot.last_burst);
+            assertEquals(0.5, prot.config.sample_rate, 0);
+
+            prot.active(true);
+            assertTrue(prot.config.enabled);
+        }
+    }
+
+    /** A resent burst request must not restart the burst, whether it is still running or not */
+    @Test
+    public void testBurstRequestIsIdempotent() throws Exception {
+        OPEN_TELEMETRY prot=new OPEN_TELEMETRY().active(false);
+        Address initiator=Util.createRandomAddress("A");
+        try(JChannel ignored=new JChannel(new SHARED_LOOPBACK(), prot)) {
+            BurstHeader hdr=new BurstHeader(42, 60_000, 0);
+            prot.handleBurst(initiator, hdr);
+            DiagnosticBurst burst=prot.config.burst;
+            assertTrue(burst.is(initiator, 42));
+            prot.handleBurst(initiator, hdr);
+            assertSame(burst, prot.config.burst);
+
+            prot.stopBurst();
+            prot.handleBurst(initiator, hdr);
+            assertFalse(prot.isBurstActive());
+
+            prot.handleBurst(initiator, new BurstHeader(43, 60_000, 0)); // a new burst
+            assertTrue(prot.config.burst.is(initiator, 43));
+        }
+    }
+
+    /** Burst requests must be handled even if they are received in a batch while tracing is disabled */
+    @Test
+    public void testBurstRequestInBatch() throws Exception {
+        OPEN_TELEMETRY prot=new OPEN_TELEMETRY().active(false);
+        Address initiator=Util.createRandomAddress("A");
+        try(JChannel ignored=new JChannel(new SHARED_LOOPBACK(), prot)) {
+            MessageBatch batch=new MessageBatch(List.of(
+              new EmptyMessage(null).setSrc(initiator)
+                .putHeader(OPEN_TELEMETRY.OPEN_TELEMETRY_ID, new BurstHeader(1, 60_000, 0)),
+              new EmptyMessage(null).setSrc(initiator)));
+            batch.sender(initiator);
+            prot.up(batch);
+            assertTrue(prot.isBurstActive());
+            assertTrue(prot.config.burst.is(initiator, 1));
+            assertEquals(1, batch.size()); // the burst request was removed, the other message was passed up
+        }
+    }
+
+    /** The baggage of a received message must be current in the protocols above, whether it is sampled or not */
+    @Test
+    public void testBaggageIsCurrentOnDelivery() throws Exception {
+        InMemorySpanExporter exporter=InMemorySpanExporter.create();
+        OpenTelemetrySdk sdk=sdk(exporter);
+        try {
+            TracingRuntime.init(sdk);
+            OPEN_TELEMETRY prot=new OPEN_TELEMETRY().baggageKeys("tenant").sampleRate(0);
+            BaggageRecorder recorder=new BaggageRecorder();
+            Address sender=Util.createRandomAddress("A");
+            try(JChannel ignored=new JChannel(new SHARED_LOOPBACK(), prot, recorder)) {
+                prot.active(true); // as done by start()
+                prot.up(message(prot, sender)); // not sampled
+                prot.sampleRate(1);
+                prot.up(message(prot, sender));
+                assertEquals(List.of("acme", "acme"), recorder.tenants);
+                assertEquals(1, exporter.getFinishedSpanItems().size());
+                assertEquals("deliver-single-msg", exporter.getFinishedSpanItems().get(0).getName());
+                exporter.reset();
+
+                // the baggage of batched messages is not current, but recorded as span attribute
+                recorder.tenants.clear();
+                MessageBatch batch=new MessageBatch(List.of(message(prot, sender), message(prot, sender)));
+                prot.up(batch.sender(sender));
+                assertEquals(2, recorder.tenants.size());
+                assertNull(recorder.tenants.get(0));
+                List<SpanData> spans=exporter.getFinishedSpanItems();
+                assertEquals(2, spans.size());
+                for(SpanData span: spans) {
+                    assertEquals("acme", span.getAttributes().get(AttributeKey.stringKey("baggage.tenant")));
+                    assertNull(span.getAttributes().get(AttributeKey.stringKey("baggage.user")));
+                    assertEquals("OPEN_TELEMETRY", span.getAttributes().get(TracingRuntime.PROTOCOL));
+                }
+            }
+        }
+        finally {
+            TracingRuntime.init(OpenTelemetry.noop());
+            sdk.getSdkTracerProvider().close();
+        }
+    }
+
+    /**
+     * Messages without a header (e.g. from members which missed a burst request, or retransmissions of messages sent
+     * before the burst) must be delivered, and traced as root spans
+     */
+    @Test
+    public void testMessagesWithoutHeader() throws Exception {
+        InMemorySpanExporter exporter=InMemorySpanExporter.create();
+        OpenTelemetrySdk sdk=sdk(exporter);
+        try {
+            TracingRuntime.init(sdk);
+            OPEN_TELEMETRY prot=new OPEN_TELEMETRY().active(false);
+            BaggageRecorder recorder=new BaggageRecorder();
+            Address sender=Util.createRandomAddress("A");
+            try(JChannel ignored=new JChannel(new SHARED_LOOPBACK(), prot, recorder)) {
+                prot.startBurst(60_000, 0);
+                prot.up(new EmptyMessage(null).setSrc(sender));
+                prot.up(new MessageBatch(List.of(new EmptyMessage(null).setSrc(sender),
+                                                 new EmptyMessage(null).setSrc(sender))).sender(sender));
+                assertEquals(3, recorder.tenants.size());
+                List<SpanData> spans=exporter.getFinishedSpanItems();
+                assertEquals(3, spans.size());
+                spans.forEach(span -> assertFalse(span.getParentSpanContext().isValid()));
+            }
+        }
+        finally {
+            TracingRuntime.init(OpenTelemetry.noop());
+            sdk.getSdkTracerProvider().close();
+        }
+    }
+
+    /** Burst requests with an invalid duration are ignored, rather than failing the receiver thread */
+    @Test
+    public void testInvalidBurstRequest() throws Exception {
+        OPEN_TELEMETRY prot=new OPEN_TELEMETRY().active(false);
+        Address initiator=Util.createRandomAddress("A");
+        try(JChannel ignored=new JChannel(new SHARED_LOOPBACK(), prot)) {
+            prot.up(new EmptyMessage(null).setSrc(initiator)
+                      .putHeader(OPEN_TELEMETRY.OPEN_TELEMETRY_ID, new BurstHeader(1, 0, 0)));
+            prot.up(new EmptyMessage(null).setSrc(initiator)
+                      .putHeader(OPEN_TELEMETRY.OPEN_TELEMETRY_ID, new BurstHeader(2, 1000, -1)));
+            assertFalse(prot.isBurstActive());
+        }
+    }
+
+    /** Returns a message with a header populated from the baggage, marshalled as if received over the network */
+    protected static Message message(OPEN_TELEMETRY prot, Address sender) throws Exception {
+        TracerHeader hdr=new TracerHeader();
+        try(Scope ignored=baggage().storeInContext(Context.root()).makeCurrent()) {
+            prot.populateHeader(hdr);
+        }
+        hdr.putBaggage("user", "bela"); // not whitelisted by the receiver
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(hdr.serializedSize());
+        hdr.writeTo(out);
+        TracerHeader received=new TracerHeader();
+        received.readFrom(new ByteArrayDataInputStream(out.buffer(), 0, out.position()));
+        return new EmptyMessage(null).setSrc(sender).putHeader(OPEN_TELEMETRY.OPEN_TELEMETRY_ID, received);
+    }
+
+    protected static OpenTelemetrySdk sdk(InMemorySpanExporter exporter) {
+        return OpenTelemetrySdk.builder()
+          .setTracerProvider(SdkTracerProvider.builder().addSpanProcessor(SimpleSpanProcessor.create(exporter)).build())
+          .setPropagators(ContextPropagators.create(TextMapPropagator.composite(
+            W3CTraceContextPropagator.getInstance(), W3CBaggagePropagator.getInstance())))
+          .build();
+    }
+
+    protected static Baggage baggage() {
+        return Baggage.builder().put("tenant", "acme").put("request-class", "bulk").put("user", "bela").build();
+    }
+
+    /** Records the tenant of the current baggage when a message is delivered */
+    protected static class BaggageRecorder extends Protocol {
+        protected final List<String> tenants=new ArrayList<>();
+
+        public Object up(Message msg) {
+            tenants.add(Baggage.current().getEntryValue("tenant"));
+            return null;
+        }
+
+        public void up(MessageBatch batch) {
+            for(Message ignored: batch)
+                tenants.add(Baggage.current().getEntryValue("tenant"));
+        }
+    }
+}